@@ -0,0 +1,157 @@
+package com.tibame.benchmark;
+
+import com.tibame.benchmark.support.EmbeddedRedis;
+import com.tibame.entity.ExampleEntity;
+import com.tibame.utils.redis.CacheClient;
+import com.tibame.utils.redis.NearCache;
+import com.tibame.utils.redis.TtlPolicy;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+// CacheClient.queryWithMutexAndLogicExpire 各條路徑的延遲
+// localHit:   本地緩存命中
+// redisHit:   本地緩存沒有資料, Redis命中
+// staleLocal: 本地資料已過期, 只讀取Redis的header後回傳舊資料
+// staleRedis: 本地緩存沒有資料, Redis中的資料已過期 (持有鎖讓重建不會發生, 只測量讀取路徑)
+// miss:       緩存不存在, 上鎖 -> 查詢資料庫(模擬) -> 寫入緩存
+// batch*:     BATCH_SIZE筆資料的本地緩存未命中, queryMany(一次MGET) 與 逐筆查詢 的比較
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheClientBenchmark {
+    private static final String KEY_PREFIX = "bench:user:";
+    private static final String LOCK_PREFIX = "bench:lock:user:";
+    private static final long HIT_ID = 1L;
+    private static final long STALE_ID = 2L;
+    private static final long MISS_ID = 3L;
+    private static final int BATCH_SIZE = 20;
+    private static final long BATCH_FIRST_ID = 100L;
+    private static final TtlPolicy DATA_TTL = TtlPolicy.of(3600L, TimeUnit.SECONDS);
+    private static final TtlPolicy STATUS_TTL = TtlPolicy.of(30L, TimeUnit.SECONDS);
+    private static final TtlPolicy NATURAL_TTL = TtlPolicy.of(7200L, TimeUnit.SECONDS);
+
+    private EmbeddedRedis redis;
+    private NearCache nearCache;
+    private CacheClient cacheClient;
+    private ExampleEntity entity;
+    private List<Long> batchIds;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        redis = new EmbeddedRedis();
+        nearCache = new NearCache();
+        cacheClient = redis.cacheClient(nearCache);
+
+        entity = new ExampleEntity();
+        entity.setPhone("0912345678");
+        entity.setNickName("PerfectTrip旅人");
+        entity.setIcon("image/1234567890123");
+
+        cacheClient.setWithLogicAndNaturalExpire(KEY_PREFIX + HIT_ID, entity, DATA_TTL, NATURAL_TTL);
+        cacheClient.setWithLogicAndNaturalExpire(KEY_PREFIX + STALE_ID, entity, -1L, 7200L, TimeUnit.SECONDS);
+        redis.stringTemplate().opsForValue().set(LOCK_PREFIX + STALE_ID, "held");
+
+        batchIds = new ArrayList<>();
+        for (long id = BATCH_FIRST_ID; id < BATCH_FIRST_ID + BATCH_SIZE; id++) {
+            batchIds.add(id);
+            cacheClient.setWithLogicAndNaturalExpire(KEY_PREFIX + id, findById(id), DATA_TTL, NATURAL_TTL);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        redis.close();
+    }
+
+    @Benchmark
+    public ExampleEntity localHit() {
+        return query(HIT_ID);
+    }
+
+    @Benchmark
+    public ExampleEntity redisHit() {
+        nearCache.invalidate(KEY_PREFIX + HIT_ID);
+        return query(HIT_ID);
+    }
+
+    @Benchmark
+    public ExampleEntity staleLocal() {
+        return query(STALE_ID);
+    }
+
+    @Benchmark
+    public ExampleEntity staleRedis() {
+        nearCache.invalidate(KEY_PREFIX + STALE_ID);
+        return query(STALE_ID);
+    }
+
+    @Benchmark
+    public ExampleEntity miss() {
+        nearCache.invalidate(KEY_PREFIX + MISS_ID);
+        redis.bytesTemplate().delete(KEY_PREFIX + MISS_ID);
+        return query(MISS_ID);
+    }
+
+    @Benchmark
+    public Map<Long, ExampleEntity> batchQueryMany() {
+        invalidateBatch();
+        return cacheClient.queryMany(
+                KEY_PREFIX,
+                LOCK_PREFIX,
+                batchIds,
+                ExampleEntity.class,
+                DATA_TTL,
+                STATUS_TTL,
+                NATURAL_TTL,
+                ExampleEntity::getId,
+                ids -> ids.stream().map(this::findById).collect(Collectors.toList())
+        );
+    }
+
+    @Benchmark
+    public List<ExampleEntity> batchOneByOne() {
+        invalidateBatch();
+        List<ExampleEntity> users = new ArrayList<>(BATCH_SIZE);
+        for (Long id : batchIds) {
+            users.add(query(id));
+        }
+        return users;
+    }
+
+    private void invalidateBatch() {
+        for (Long id : batchIds) {
+            nearCache.invalidate(KEY_PREFIX + id);
+        }
+    }
+
+    private ExampleEntity query(long id) {
+        return cacheClient.queryWithMutexAndLogicExpire(
+                KEY_PREFIX,
+                LOCK_PREFIX,
+                id,
+                ExampleEntity.class,
+                DATA_TTL,
+                STATUS_TTL,
+                NATURAL_TTL,
+                this::findById
+        );
+    }
+
+    private ExampleEntity findById(Long id) {
+        ExampleEntity result = new ExampleEntity();
+        result.setId(id);
+        result.setPhone(entity.getPhone());
+        result.setNickName(entity.getNickName());
+        result.setIcon(entity.getIcon());
+        return result;
+    }
+}
@@ -0,0 +1,62 @@
+package com.tibame.benchmark;
+
+import com.tibame.benchmark.support.EmbeddedRedis;
+import com.tibame.utils.redis.CacheClient;
+import com.tibame.utils.redis.ImageCacheClient;
+import com.tibame.utils.redis.JacksonCacheCodec;
+import com.tibame.utils.redis.NearCache;
+import org.springframework.data.redis.core.RedisCallback;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+// 壓縮前後的Redis記憶體用量 (不是JMH測試, 直接執行main)
+// 以相同的資料各寫入KEYS筆, 比較寫入前後的used_memory
+//
+// 執行方式: java -cp target/benchmarks.jar com.tibame.benchmark.CacheMemoryReport
+public class CacheMemoryReport {
+    private static final int KEYS = 1000;
+    private static final int IMAGES = 100;
+    private static final long TTL = 3600L;
+
+    public static void main(String[] args) throws IOException {
+        try (EmbeddedRedis redis = new EmbeddedRedis()) {
+            CacheClient plain = redis.cacheClient(new NearCache(), JacksonCacheCodec.smile());
+            CacheClient compressed = redis.cacheClient(new NearCache(), JacksonCacheCodec.smile().withCompression(1024));
+            Object entities = CompressionBenchmark.entities(20);
+            System.out.printf("%n== CacheClient: %d keys, 20 entities each ==%n", KEYS);
+            report(redis, "smile", KEYS, i -> plain.setWithLogicExpire("report:list:" + i, entities, TTL, TimeUnit.SECONDS));
+            report(redis, "smile + lz4", KEYS, i -> compressed.setWithLogicExpire("report:list:" + i, entities, TTL, TimeUnit.SECONDS));
+
+            ImageCacheClient imageCacheClient = redis.imageCacheClient();
+            byte[] bmp = CompressionBenchmark.createImage("bmp");
+            System.out.printf("%n== ImageCacheClient: %d BMP images (%d bytes each) ==%n", IMAGES, bmp.length);
+            report(redis, "raw", IMAGES, i -> redis.bytesTemplate().opsForHash().put("report:img:" + i, "data", bmp));
+            report(redis, "lz4", IMAGES, i -> imageCacheClient.setWithLogicExpire("report:img:" + i, bmp, "image/bmp", TTL, TTL, TimeUnit.SECONDS));
+        }
+    }
+
+    private static void report(EmbeddedRedis redis, String name, int count, IntConsumer writer) {
+        flushAll(redis);
+        long before = usedMemory(redis);
+        for (int i = 0; i < count; i++) {
+            writer.accept(i);
+        }
+        long used = usedMemory(redis) - before;
+        System.out.printf("%-14s %,12d bytes (%,d bytes/key)%n", name, used, used / count);
+    }
+
+    private static void flushAll(EmbeddedRedis redis) {
+        redis.bytesTemplate().execute((RedisCallback<Void>) connection -> {
+            connection.serverCommands().flushAll();
+            return null;
+        });
+    }
+
+    private static long usedMemory(EmbeddedRedis redis) {
+        Properties info = redis.bytesTemplate().execute((RedisCallback<Properties>) connection -> connection.serverCommands().info("memory"));
+        return Long.parseLong(info.getProperty("used_memory").trim());
+    }
+}
@@ -0,0 +1,98 @@
+package com.tibame.benchmark;
+
+import com.tibame.benchmark.support.EmbeddedRedis;
+import com.tibame.entity.Image;
+import com.tibame.utils.basic.ImageUtil;
+import com.tibame.utils.redis.ImageCacheClient;
+import com.tibame.utils.redis.TtlPolicy;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// 大圖片的緩存讀取: 整張存在單一欄位 vs 分段儲存
+// single:       資料直接存放在緩存的data欄位, 每次命中都取回整張圖片
+// chunkedFull:  命中後以readChunks分批讀取所有段落
+// chunkedRange: 命中後只讀取第一段 (Range請求, 例如影像檢視器先讀取開頭)
+// 另外可以同時用 redis-cli --latency 觀察其他指令的延遲 (單一的大回覆會阻塞Redis)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChunkedImageCacheBenchmark {
+    private static final String KEY_PREFIX = "bench:img:";
+    private static final String LOCK_PREFIX = "bench:lock:img:";
+    private static final long SINGLE_IMAGE_ID = 1L;
+    private static final long CHUNKED_IMAGE_ID = 2L;
+    private static final int BATCH = 4;
+    private static final TtlPolicy DATA_TTL = TtlPolicy.of(3600L, TimeUnit.SECONDS);
+    private static final TtlPolicy STATUS_TTL = TtlPolicy.of(30L, TimeUnit.SECONDS);
+    private static final TtlPolicy NATURAL_TTL = TtlPolicy.of(7200L, TimeUnit.SECONDS);
+
+    @Param({"1048576", "4194304"})
+    private int payloadSize;
+
+    private EmbeddedRedis redis;
+    private ImageCacheClient imageCacheClient;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        redis = new EmbeddedRedis();
+        imageCacheClient = redis.imageCacheClient();
+
+        byte[] data = new byte[payloadSize];
+        new Random(42).nextBytes(data);
+        imageCacheClient.setWithLogicExpire(KEY_PREFIX + SINGLE_IMAGE_ID, data, "image/jpeg", DATA_TTL, NATURAL_TTL);
+
+        Image image = new Image();
+        image.setData(data);
+        image.setMimetype("image/jpeg");
+        image.setContentHash(ImageUtil.contentHash(data));
+        image.setCacheEnabled(true);
+        // 經過准入判斷: 第一次讀取只記錄頻率, 第二次讀取才寫入緩存
+        for (int i = 0; i < 2; i++) {
+            query(CHUNKED_IMAGE_ID, image);
+        }
+        if (!query(CHUNKED_IMAGE_ID, null).isCachedInChunks()) {
+            throw new IllegalStateException("Image was not cached in chunks, check EmbeddedRedis.IMAGE_CACHE_BUDGET");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        redis.close();
+    }
+
+    @Benchmark
+    public int single() {
+        return query(SINGLE_IMAGE_ID, null).getData().length;
+    }
+
+    @Benchmark
+    public long chunkedFull() {
+        Image image = query(CHUNKED_IMAGE_ID, null);
+        int chunks = (int) ((image.getSize() + ImageCacheClient.CHUNK_SIZE - 1) / ImageCacheClient.CHUNK_SIZE);
+        long total = 0;
+        for (int from = 0; from < chunks; from += BATCH) {
+            for (byte[] chunk : imageCacheClient.readChunks(image.getContentHash(), from, Math.min(chunks, from + BATCH))) {
+                total += chunk.length;
+            }
+        }
+        return total;
+    }
+
+    @Benchmark
+    public int chunkedRange() {
+        Image image = query(CHUNKED_IMAGE_ID, null);
+        List<byte[]> chunks = imageCacheClient.readChunks(image.getContentHash(), 0, 1);
+        return chunks.get(0).length;
+    }
+
+    private Image query(long imageId, Image source) {
+        return imageCacheClient.queryWithMutexAndLogicExpire(KEY_PREFIX, LOCK_PREFIX, imageId, DATA_TTL, STATUS_TTL, NATURAL_TTL, id -> source);
+    }
+}
@@ -0,0 +1,110 @@
+package com.tibame.benchmark;
+
+import com.tibame.entity.ExampleEntity;
+import com.tibame.utils.redis.CacheCodec;
+import com.tibame.utils.redis.JacksonCacheCodec;
+import com.tibame.utils.redis.PayloadCompressor;
+import org.openjdk.jmh.annotations.*;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// 緩存資料壓縮(LZ4)的CPU成本與省下的空間
+// payload:
+//      entities: 20筆ExampleEntity的Smile資料 (CacheClient的列表類資料)
+//      bmp:      800x600的BMP (ImageCacheClient會壓縮的未壓縮格式)
+//      jpeg:     800x600的JPEG (ImageCacheClient不嘗試壓縮, 對照組: 觀察嘗試壓縮的浪費)
+// compress / decompress: 寫入與讀取時增加的成本, 壓縮前後的大小在setup時輸出
+// Redis實際的記憶體用量請執行 CacheMemoryReport
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+    @Param({"entities", "bmp", "jpeg"})
+    private String payload;
+
+    private final PayloadCompressor compressor = new PayloadCompressor(1024);
+    private byte[] raw;
+    private byte[] compressed;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        switch (payload) {
+            case "entities":
+                raw = createEntities();
+                break;
+            case "bmp":
+                raw = createImage("bmp");
+                break;
+            default:
+                raw = createImage("jpg");
+        }
+        compressed = compressor.compress(raw);
+        System.out.printf("%n%s: raw=%d bytes, lz4=%s%n", payload, raw.length,
+                compressed == null ? "skipped (saving < 10%)" : compressed.length + " bytes (" + compressed.length * 100 / raw.length + "%)");
+    }
+
+    @Benchmark
+    public byte[] compress() {
+        return compressor.compress(raw);
+    }
+
+    @Benchmark
+    public byte[] decompress() {
+        return compressed == null ? raw : PayloadCompressor.decompress(compressed, 0);
+    }
+
+    static byte[] createEntities() {
+        CacheCodec codec = JacksonCacheCodec.smile();
+        byte[] encoded = codec.encode(entities(20), CacheCodec.NO_LOGIC_EXPIRE);
+        // 只比較資料本體 (不含header)
+        byte[] body = new byte[encoded.length - codec.headerSize()];
+        System.arraycopy(encoded, codec.headerSize(), body, 0, body.length);
+        return body;
+    }
+
+    static List<ExampleEntity> entities(int count) {
+        List<ExampleEntity> entities = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ExampleEntity entity = new ExampleEntity();
+            entity.setId(1000L + i);
+            entity.setPhone("09" + (12345678 + i));
+            entity.setPassword("5f4dcc3b5aa765d61d8327deb882cf99");
+            entity.setNickName("PerfectTrip旅人" + i);
+            entity.setIcon("image/" + (1234567890123L + i));
+            entity.setCreateTime(new Timestamp(1700000000000L + i * 1000L));
+            entity.setUpdateTime(new Timestamp(1700000000000L + i * 1000L));
+            entities.add(entity);
+        }
+        return entities;
+    }
+
+    // 帶有漸層與少量雜訊的測試圖片 (接近一般的截圖或插畫)
+    static byte[] createImage(String format) throws IOException {
+        int width = 800;
+        int height = 600;
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(42);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = (x * 255 / width + random.nextInt(4)) & 0xFF;
+                int g = (y * 255 / height + random.nextInt(4)) & 0xFF;
+                int b = ((x + y) * 255 / (width + height)) & 0xFF;
+                image.setRGB(x, y, (r << 16) | (g << 8) | b);
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, format, out);
+        return out.toByteArray();
+    }
+}
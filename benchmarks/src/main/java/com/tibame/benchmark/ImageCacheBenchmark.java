@@ -0,0 +1,130 @@
+package com.tibame.benchmark;
+
+import com.tibame.benchmark.support.EmbeddedRedis;
+import com.tibame.entity.Image;
+import com.tibame.utils.basic.ImageUtil;
+import com.tibame.utils.redis.ImageCacheClient;
+import com.tibame.utils.redis.TtlPolicy;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.data.redis.core.RedisCallback;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// 圖片緩存命中時的讀取成本
+// hit:       ImageCacheClient.queryWithMutexAndLogicExpire 完整的命中路徑 (資料直接存放在緩存中)
+// sharedHit: 同上, 資料存放在以contentHash為key的共用緩存 (讀取id的緩存後再以etag讀取共用的資料, 共兩次請求)
+// hgetall: 單純的HGETALL (對照組, 觀察工具類別本身增加的成本)
+// legacyHit: 改用二進位header之前的讀取方式 (HMGET字串欄位, 解析LocalDateTime並換算epoch, 建立mimetype字串)
+// 每次命中的配置量以 -prof gc 的 gc.alloc.rate.norm 比較 hit 與 legacyHit
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImageCacheBenchmark {
+    private static final String KEY_PREFIX = "bench:img:";
+    private static final String LOCK_PREFIX = "bench:lock:img:";
+    private static final long IMAGE_ID = 1L;
+    private static final long SHARED_IMAGE_ID = 2L;
+    private static final String LEGACY_KEY = "bench:legacy:img:1";
+    private static final byte[][] LEGACY_FIELDS = {
+            "data".getBytes(StandardCharsets.UTF_8),
+            "mimetype".getBytes(StandardCharsets.UTF_8),
+            "expireTime".getBytes(StandardCharsets.UTF_8),
+            "codec".getBytes(StandardCharsets.UTF_8)
+    };
+    private static final TtlPolicy DATA_TTL = TtlPolicy.of(3600L, TimeUnit.SECONDS);
+    private static final TtlPolicy STATUS_TTL = TtlPolicy.of(30L, TimeUnit.SECONDS);
+    private static final TtlPolicy NATURAL_TTL = TtlPolicy.of(7200L, TimeUnit.SECONDS);
+
+    @Param({"10240", "51200"})
+    private int payloadSize;
+
+    private EmbeddedRedis redis;
+    private ImageCacheClient imageCacheClient;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        redis = new EmbeddedRedis();
+        imageCacheClient = redis.imageCacheClient();
+
+        byte[] data = new byte[payloadSize];
+        new Random(42).nextBytes(data);
+        imageCacheClient.setWithLogicExpire(KEY_PREFIX + IMAGE_ID, data, "image/jpeg", DATA_TTL, NATURAL_TTL);
+
+        Map<String, byte[]> legacy = new HashMap<>();
+        legacy.put("data", data);
+        legacy.put("mimetype", "image/jpeg".getBytes(StandardCharsets.UTF_8));
+        legacy.put("expireTime", String.valueOf(LocalDateTime.now().plusHours(1)).getBytes(StandardCharsets.UTF_8));
+        legacy.put("codec", new byte[]{0});
+        redis.bytesTemplate().opsForHash().putAll(LEGACY_KEY, legacy);
+
+        Image image = new Image();
+        image.setData(data);
+        image.setMimetype("image/jpeg");
+        image.setContentHash(ImageUtil.contentHash(data));
+        image.setCacheEnabled(true);
+        // 經過准入判斷: 第一次讀取只記錄頻率(寫入STATUS_NO_CACHE), 第二次讀取才寫入緩存
+        for (int i = 0; i < 2; i++) {
+            imageCacheClient.queryWithMutexAndLogicExpire(KEY_PREFIX, LOCK_PREFIX, SHARED_IMAGE_ID, DATA_TTL, STATUS_TTL, NATURAL_TTL, id -> image);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        redis.close();
+    }
+
+    @Benchmark
+    public Image hit() {
+        return imageCacheClient.queryWithMutexAndLogicExpire(
+                KEY_PREFIX,
+                LOCK_PREFIX,
+                IMAGE_ID,
+                DATA_TTL,
+                STATUS_TTL,
+                NATURAL_TTL,
+                id -> null
+        );
+    }
+
+    @Benchmark
+    public Image sharedHit() {
+        return imageCacheClient.queryWithMutexAndLogicExpire(
+                KEY_PREFIX,
+                LOCK_PREFIX,
+                SHARED_IMAGE_ID,
+                DATA_TTL,
+                STATUS_TTL,
+                NATURAL_TTL,
+                id -> null
+        );
+    }
+
+    @Benchmark
+    public Image legacyHit() {
+        byte[] rawKey = LEGACY_KEY.getBytes(StandardCharsets.UTF_8);
+        List<byte[]> entry = redis.bytesTemplate().execute((RedisCallback<List<byte[]>>) connection -> connection.hashCommands().hMGet(rawKey, LEGACY_FIELDS));
+        LocalDateTime expireTime = LocalDateTime.parse(new String(entry.get(2), StandardCharsets.UTF_8));
+        long expireMillis = expireTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        Image image = new Image();
+        image.setData(entry.get(0));
+        image.setMimetype(new String(entry.get(1), StandardCharsets.UTF_8));
+        image.setCacheEnabled(expireMillis > System.currentTimeMillis());
+        return image;
+    }
+
+    @Benchmark
+    public Map<Object, Object> hgetall() {
+        return redis.bytesTemplate().opsForHash().entries(KEY_PREFIX + IMAGE_ID);
+    }
+}
@@ -0,0 +1,78 @@
+package com.tibame.benchmark;
+
+import com.tibame.utils.basic.ImageUtil;
+import org.openjdk.jmh.annotations.*;
+
+import javax.imageio.ImageIO;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// 上傳圖片的解碼 + 縮放 + JPEG編碼 (背景處理圖片的主要成本)
+// drawImage:   原本的作法, 完整解碼後一次drawImage縮放
+// progressive: 完整解碼後漸進式縮放 (ImageUtil.resizeImage(BufferedImage, ...))
+// subsampled:  解碼時跳過像素, 再漸進式縮放 (ImageUtil.resizeImage(byte[], ...))
+// 記憶體用量請加上 -prof gc 比較 gc.alloc.rate.norm
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImageResizeBenchmark {
+    @Param({"800x600", "1920x1080", "4000x3000"})
+    private String source;
+
+    @Param({"320", "1600"})
+    private int targetWidth;
+
+    private byte[] jpeg;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        String[] size = source.split("x");
+        jpeg = createJpeg(Integer.parseInt(size[0]), Integer.parseInt(size[1]));
+    }
+
+    @Benchmark
+    public byte[] drawImage() throws IOException {
+        BufferedImage image = ImageUtil.getBufferedImage(jpeg);
+        int targetHeight = image.getHeight() * targetWidth / image.getWidth();
+        BufferedImage scaled = new BufferedImage(targetWidth, targetHeight, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = scaled.createGraphics();
+        graphics.drawImage(image, 0, 0, targetWidth, targetHeight, null);
+        graphics.dispose();
+        return ImageUtil.encode(scaled, "image/jpeg", 0.85f);
+    }
+
+    @Benchmark
+    public byte[] progressive() throws IOException {
+        BufferedImage image = ImageUtil.getBufferedImage(jpeg);
+        return ImageUtil.resizeImage(image, targetWidth, null, 0.85f);
+    }
+
+    @Benchmark
+    public byte[] subsampled() throws IOException {
+        return ImageUtil.resizeImage(jpeg, targetWidth, null, 0.85f);
+    }
+
+    // 產生帶有漸層與雜訊的測試圖片 (單色圖片的壓縮結果太理想, 不具參考性)
+    static byte[] createJpeg(int width, int height) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(42);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = (x * 255 / width + random.nextInt(32)) & 0xFF;
+                int g = (y * 255 / height + random.nextInt(32)) & 0xFF;
+                int b = ((x + y) * 255 / (width + height) + random.nextInt(32)) & 0xFF;
+                image.setRGB(x, y, (r << 16) | (g << 8) | b);
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpg", out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,36 @@
+package com.tibame.benchmark;
+
+import com.tibame.benchmark.support.EmbeddedRedis;
+import com.tibame.utils.redis.RedisIdWorker;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// RedisIdWorker.nextId 的延遲 (每次都是一次INCR)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RedisIdWorkerBenchmark {
+    private EmbeddedRedis redis;
+    private RedisIdWorker idWorker;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        redis = new EmbeddedRedis();
+        idWorker = redis.redisIdWorker();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        redis.close();
+    }
+
+    @Benchmark
+    public Long nextId() {
+        return idWorker.nextId("bench");
+    }
+}
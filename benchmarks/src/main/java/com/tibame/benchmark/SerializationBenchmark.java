@@ -0,0 +1,119 @@
+package com.tibame.benchmark;
+
+import com.tibame.entity.ExampleEntity;
+import com.tibame.utils.basic.JSONUtil;
+import com.tibame.utils.redis.CacheCodec;
+import com.tibame.utils.redis.JacksonCacheCodec;
+import org.openjdk.jmh.annotations.*;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+// 序列化方式的比較
+// JSONUtil:      toJsonStr / toBean 本身的成本
+// legacy*:       舊版CacheClient的RedisData封裝 (Json -> LinkedHashMap -> 物件 兩次轉換)
+// jsonCodec*:    CacheCodec的Json格式 (header + Json, 一次轉換)
+// smileCodec*:   CacheCodec的Smile格式 (header + 二進位, 一次轉換, 目前的預設值)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+    private final CacheCodec jsonCodec = JacksonCacheCodec.json();
+    private final CacheCodec smileCodec = JacksonCacheCodec.smile();
+
+    private ExampleEntity entity;
+    private String json;
+    private String legacyJson;
+    private byte[] jsonCodecBytes;
+    private byte[] smileCodecBytes;
+
+    @Setup
+    public void setup() {
+        entity = new ExampleEntity();
+        entity.setId(1024L);
+        entity.setPhone("0912345678");
+        entity.setPassword("5f4dcc3b5aa765d61d8327deb882cf99");
+        entity.setNickName("PerfectTrip旅人");
+        entity.setIcon("image/1234567890123");
+        entity.setCreateTime(new Timestamp(System.currentTimeMillis()));
+        entity.setUpdateTime(new Timestamp(System.currentTimeMillis()));
+
+        json = JSONUtil.toJsonStr(entity);
+        legacyJson = legacyEncode();
+        jsonCodecBytes = jsonCodec.encode(entity, System.currentTimeMillis());
+        smileCodecBytes = smileCodec.encode(entity, System.currentTimeMillis());
+
+        System.out.printf("%nsize(bytes): legacy=%d, jsonCodec=%d, smileCodec=%d%n",
+                legacyJson.getBytes().length, jsonCodecBytes.length, smileCodecBytes.length);
+    }
+
+    @Benchmark
+    public String toJsonStr() {
+        return JSONUtil.toJsonStr(entity);
+    }
+
+    @Benchmark
+    public ExampleEntity toBean() {
+        return JSONUtil.toBean(json, ExampleEntity.class);
+    }
+
+    @Benchmark
+    public String legacyEncode() {
+        LegacyRedisData redisData = new LegacyRedisData();
+        redisData.setData(entity);
+        redisData.setExpireTime(LocalDateTime.now());
+        return JSONUtil.toJsonStr(redisData);
+    }
+
+    @Benchmark
+    public ExampleEntity legacyDecode() {
+        LegacyRedisData redisData = JSONUtil.toBean(legacyJson, LegacyRedisData.class);
+        return JSONUtil.toBean(redisData.getData(), ExampleEntity.class);
+    }
+
+    @Benchmark
+    public byte[] jsonCodecEncode() {
+        return jsonCodec.encode(entity, System.currentTimeMillis());
+    }
+
+    @Benchmark
+    public ExampleEntity jsonCodecDecode() {
+        return jsonCodec.decode(jsonCodecBytes, ExampleEntity.class);
+    }
+
+    @Benchmark
+    public byte[] smileCodecEncode() {
+        return smileCodec.encode(entity, System.currentTimeMillis());
+    }
+
+    @Benchmark
+    public ExampleEntity smileCodecDecode() {
+        return smileCodec.decode(smileCodecBytes, ExampleEntity.class);
+    }
+
+    // 舊版CacheClient使用的封裝格式 (已移除的RedisData)
+    public static class LegacyRedisData {
+        private LocalDateTime expireTime;
+        private Object data;
+
+        public LocalDateTime getExpireTime() {
+            return expireTime;
+        }
+
+        public void setExpireTime(LocalDateTime expireTime) {
+            this.expireTime = expireTime;
+        }
+
+        public Object getData() {
+            return data;
+        }
+
+        public void setData(Object data) {
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.tibame.benchmark;
+
+import com.tibame.utils.redis.TtlPolicy;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.tibame.utils.Constants.CACHE_IMG_DATA_TTL;
+
+// 緩存雪崩的模擬 (不是JMH測試, 直接執行main)
+// 假設部署後的暖機期間, 在WARMUP秒內平均寫入KEYS筆資料, 統計每一秒有多少筆資料同時過期
+// 比較固定過期時間與各種隨機偏移的分布, 以文字直方圖輸出
+//
+// 執行方式: java -cp target/benchmarks.jar com.tibame.benchmark.TtlJitterSimulation
+public class TtlJitterSimulation {
+    private static final int KEYS = 100_000;
+    private static final int WARMUP = 5; // 秒
+    private static final int BAR_WIDTH = 60;
+
+    public static void main(String[] args) {
+        TtlPolicy fixed = TtlPolicy.of(60L, TimeUnit.SECONDS);
+        simulate("fixed 60s", fixed);
+        simulate("uniform +-20% (CACHE_IMG_DATA_TTL)", CACHE_IMG_DATA_TTL);
+        simulate("gaussian +-20%", fixed.withJitter(TtlPolicy.Distribution.GAUSSIAN, 0.2));
+        simulate("uniform +-20%, bounds 55s~65s", fixed.withJitter(TtlPolicy.Distribution.UNIFORM, 0.2).withBounds(55L, 65L, TimeUnit.SECONDS));
+    }
+
+    private static void simulate(String name, TtlPolicy policy) {
+        int[] histogram = new int[(int) (TimeUnit.MILLISECONDS.toSeconds(policy.getBaseMillis()) * 2 + WARMUP + 1)];
+        for (int i = 0; i < KEYS; i++) {
+            long writtenAt = (long) i * TimeUnit.SECONDS.toMillis(WARMUP) / KEYS;
+            int second = (int) ((writtenAt + policy.nextMillis()) / 1000);
+            histogram[Math.min(second, histogram.length - 1)]++;
+        }
+
+        int peak = 0;
+        int first = -1;
+        int last = -1;
+        for (int second = 0; second < histogram.length; second++) {
+            peak = Math.max(peak, histogram[second]);
+            if (histogram[second] > 0) {
+                if (first < 0) first = second;
+                last = second;
+            }
+        }
+
+        System.out.printf("%n== %s: peak %d keys/s (%.1f%% of all keys) ==%n", name, peak, peak * 100.0 / KEYS);
+        for (int second = first; second <= last; second++) {
+            int bar = (int) Math.round((double) histogram[second] * BAR_WIDTH / peak);
+            System.out.printf("%4ds %7d %s%n", second, histogram[second], "#".repeat(bar));
+        }
+    }
+
+}
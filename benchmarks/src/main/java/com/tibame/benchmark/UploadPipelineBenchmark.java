@@ -0,0 +1,94 @@
+package com.tibame.benchmark;
+
+import com.tibame.utils.basic.ImageUtil;
+import com.tibame.utils.blob.LocalDiskBlobStore;
+import com.tibame.utils.blob.LocalDiskBlobStore.StoredBlob;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.Dimension;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// 上傳與背景壓縮時, 圖片資料在記憶體中的複製次數
+// buffered:  原本的作法, 讀成byte[] -> 計算hash -> 讀取標頭 -> 寫入blob store
+// streaming: 暫存檔以串流寫入blob store (同時計算hash), 再從檔案讀取標頭
+// resizeBuffered / resizeStreaming: 背景壓縮從byte[]讀取並產生byte[], 或從檔案讀取並直接寫入blob store
+// 主要比較 -prof gc 的 gc.alloc.rate.norm (每次操作配置的記憶體)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UploadPipelineBenchmark {
+    @Param({"1920x1080", "4000x3000"})
+    private String source;
+
+    private Path dir;
+    private Path upload;
+    private LocalDiskBlobStore blobStore;
+    private String storedHash;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        String[] size = source.split("x");
+        dir = Files.createTempDirectory("upload-benchmark");
+        // 模擬multipart的暫存檔
+        upload = dir.resolve("upload.jpg");
+        Files.write(upload, ImageResizeBenchmark.createJpeg(Integer.parseInt(size[0]), Integer.parseInt(size[1])));
+        blobStore = new LocalDiskBlobStore(dir.resolve("blobs").toString());
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteStored() throws IOException {
+        // 相同hash的檔案存在時不會重複寫入, 每次都刪除才能量到寫入的成本
+        File stored = blobStore.locate(storedHash);
+        if (stored != null) {
+            Files.delete(stored.toPath());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Benchmark
+    public Dimension buffered() throws IOException {
+        byte[] data = Files.readAllBytes(upload);
+        storedHash = ImageUtil.contentHash(data);
+        Dimension dimension = ImageUtil.readSize(data);
+        blobStore.put(storedHash, data);
+        return dimension;
+    }
+
+    @Benchmark
+    public Dimension streaming() throws IOException {
+        StoredBlob stored = blobStore.put(out -> Files.copy(upload, out));
+        storedHash = stored.getHash();
+        return ImageUtil.readSize(blobStore.locate(storedHash));
+    }
+
+    @Benchmark
+    public String resizeBuffered() throws IOException {
+        byte[] resized = ImageUtil.resizeImage(Files.readAllBytes(upload), 1600, null, 0.85f);
+        storedHash = ImageUtil.contentHash(resized);
+        blobStore.put(storedHash, resized);
+        return storedHash;
+    }
+
+    @Benchmark
+    public String resizeStreaming() throws IOException {
+        File file = upload.toFile();
+        StoredBlob stored = blobStore.put(out -> ImageUtil.resizeImage(file, 1600, null, 0.85f, out));
+        storedHash = stored.getHash();
+        return storedHash;
+    }
+}
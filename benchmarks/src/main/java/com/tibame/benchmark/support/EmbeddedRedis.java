@@ -0,0 +1,108 @@
+package com.tibame.benchmark.support;
+
+import com.tibame.config.RedisConfig;
+import com.tibame.utils.redis.CacheClient;
+import com.tibame.utils.redis.CacheCodec;
+import com.tibame.utils.redis.CacheInvalidationBus;
+import com.tibame.utils.redis.CacheRebuildScheduler;
+import com.tibame.utils.redis.ImageCacheClient;
+import com.tibame.utils.redis.NearCache;
+import com.tibame.utils.redis.RedisIdWorker;
+import com.tibame.utils.redis.RedisLock;
+import com.tibame.utils.redis.RefreshAheadScheduler;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.transaction.support.TransactionTemplate;
+import redis.embedded.RedisServer;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+
+// 在本機啟動一個Redis, 並用與RedisConfig相同的設定組裝出緩存工具 (不啟動Spring容器)
+// 各個緩存工具的建構方式有變動時, 只需要修改這個類別
+public class EmbeddedRedis implements AutoCloseable {
+    private static final long IMAGE_CACHE_BUDGET = 64L * 1024 * 1024;
+
+    private final RedisServer server;
+    private final LettuceConnectionFactory connectionFactory;
+    private final RedisMessageListenerContainer listenerContainer;
+    private final RedisConfig redisConfig = new RedisConfig();
+
+    private final RedisTemplate<String, byte[]> bytesTemplate;
+    private final StringRedisTemplate stringTemplate;
+    private final TransactionTemplate transactionTemplate = new TransactionTemplate(new NoopTransactionManager());
+    private final CacheRebuildScheduler rebuildScheduler = new CacheRebuildScheduler();
+    // 不呼叫start, 測試期間不執行背景的提前刷新
+    private final RefreshAheadScheduler refreshAheadScheduler = new RefreshAheadScheduler();
+
+    public EmbeddedRedis() throws IOException {
+        int port = freePort();
+        server = new RedisServer(port);
+        server.start();
+
+        connectionFactory = new LettuceConnectionFactory(new RedisStandaloneConfiguration("localhost", port));
+        connectionFactory.afterPropertiesSet();
+
+        bytesTemplate = redisConfig.redisTemplateForImage(connectionFactory);
+        bytesTemplate.afterPropertiesSet();
+        stringTemplate = redisConfig.stringRedisTemplate(connectionFactory);
+        stringTemplate.afterPropertiesSet();
+
+        listenerContainer = redisConfig.redisMessageListenerContainer(connectionFactory);
+        listenerContainer.afterPropertiesSet();
+        listenerContainer.start();
+    }
+
+    public RedisTemplate<String, byte[]> bytesTemplate() {
+        return bytesTemplate;
+    }
+
+    public StringRedisTemplate stringTemplate() {
+        return stringTemplate;
+    }
+
+    public RedisLock redisLock() {
+        RedisLock redisLock = new RedisLock(stringTemplate, listenerContainer);
+        redisLock.subscribe();
+        return redisLock;
+    }
+
+    public CacheInvalidationBus invalidationBus(NearCache nearCache) {
+        CacheInvalidationBus bus = new CacheInvalidationBus(stringTemplate, listenerContainer, nearCache);
+        bus.subscribe();
+        return bus;
+    }
+
+    public CacheClient cacheClient(NearCache nearCache) {
+        return cacheClient(nearCache, redisConfig.cacheCodec());
+    }
+
+    public CacheClient cacheClient(NearCache nearCache, CacheCodec cacheCodec) {
+        return new CacheClient(bytesTemplate, cacheCodec, transactionTemplate, nearCache, invalidationBus(nearCache), redisLock(), rebuildScheduler, refreshAheadScheduler);
+    }
+
+    public ImageCacheClient imageCacheClient() {
+        return new ImageCacheClient(bytesTemplate, stringTemplate, transactionTemplate, invalidationBus(new NearCache()), redisLock(), rebuildScheduler, refreshAheadScheduler, IMAGE_CACHE_BUDGET);
+    }
+
+    public RedisIdWorker redisIdWorker() {
+        return new RedisIdWorker(stringTemplate);
+    }
+
+    @Override
+    public void close() throws IOException {
+        rebuildScheduler.shutdown();
+        listenerContainer.stop();
+        connectionFactory.destroy();
+        server.stop();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -1,5 +1,10 @@
 package com.tibame.config;
 
+import com.tibame.utils.redis.CacheCodec;
+import com.tibame.utils.redis.CacheRebuildScheduler;
+import com.tibame.utils.redis.JacksonCacheCodec;
+import com.tibame.utils.redis.RedisBloomFilter;
+import com.tibame.utils.redis.RedisLock;
 import io.lettuce.core.ReadFrom;
 import io.lettuce.core.resource.ClientResources;
 import io.lettuce.core.resource.DefaultClientResources;
@@ -13,8 +18,10 @@ import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactor
 import org.springframework.data.redis.connection.lettuce.LettucePoolingClientConfiguration;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.data.redis.serializer.GenericJackson2JsonRedisSerializer;
 import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import java.io.Serializable;
 
@@ -124,4 +131,31 @@ public class RedisConfig {
 
         return redisTemplate;
     }
+
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(RedisConnectionFactory factory) {
+        // Redis發布/訂閱的監聽容器 (跨節點的緩存失效通知使用)
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(factory);
+        return container;
+    }
+
+    @Bean
+    public CacheCodec cacheCodec() {
+        // CacheClient的資料格式 (預設使用二進位的Smile格式, 需要用redis-cli查看資料時可改為JacksonCacheCodec.json())
+        // 超過1KB的資料以LZ4壓縮 (列表等較大的資料)
+        return JacksonCacheCodec.smile().withCompression(1024);
+    }
+
+    @Bean
+    public RedisBloomFilter imageIdFilter(StringRedisTemplate stringRedisTemplate, TransactionTemplate transactionTemplate, RedisLock redisLock, CacheRebuildScheduler rebuildScheduler) {
+        // 圖片id的布隆過濾器 (約100萬筆, 誤判率1%, 約1.2MB)
+        return new RedisBloomFilter("img", 1_000_000L, 0.01, stringRedisTemplate, transactionTemplate, redisLock, rebuildScheduler);
+    }
+
+    @Bean
+    public RedisBloomFilter userIdFilter(StringRedisTemplate stringRedisTemplate, TransactionTemplate transactionTemplate, RedisLock redisLock, CacheRebuildScheduler rebuildScheduler) {
+        // 使用者id的布隆過濾器
+        return new RedisBloomFilter("user", 1_000_000L, 0.01, stringRedisTemplate, transactionTemplate, redisLock, rebuildScheduler);
+    }
 }
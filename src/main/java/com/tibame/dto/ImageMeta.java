@@ -0,0 +1,34 @@
+package com.tibame.dto;
+
+import com.tibame.entity.ImageStatus;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+// 圖片的基本資訊 (不包含圖片資料, 以HQL的select new直接查詢需要的欄位)
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ImageMeta {
+    private Long id;
+    private String mimetype;
+    private Boolean cacheEnabled;
+    private Long size;
+    private String contentHash;
+    private LocalDateTime createdAt;
+    // 縮圖的名稱 (原圖為null)
+    private String variant;
+    // 背景處理的狀態 (縮圖與緩存中讀取的基本資訊為null, 只有處理完成的圖片會被緩存)
+    private ImageStatus status;
+
+    public ImageMeta(Long id, String mimetype, Boolean cacheEnabled, Long size, String contentHash, LocalDateTime createdAt) {
+        this(id, mimetype, cacheEnabled, size, contentHash, createdAt, null, null);
+    }
+
+    // HQL的select new使用
+    public ImageMeta(Long id, String mimetype, Boolean cacheEnabled, Long size, String contentHash, LocalDateTime createdAt, ImageStatus status) {
+        this(id, mimetype, cacheEnabled, size, contentHash, createdAt, null, status);
+    }
+}
@@ -0,0 +1,15 @@
+package com.tibame.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+// 上傳後交給背景處理的設定 (壓縮尺寸)
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ImageProcessingRequest {
+    private boolean resizeEnabled;
+    private Integer width;
+    private Integer height;
+}
@@ -1,5 +1,6 @@
 package com.tibame.entity;
 
+import com.tibame.dto.ImageProcessingRequest;
 import lombok.Data;
 
 import javax.persistence.*;
@@ -16,19 +17,45 @@ public class Image implements Serializable {
     @Column(name = "id", nullable = false) // 使用自定義的RedisIdWorker
     private Long id;
 
+    // 移到LocalDiskBlobStore的圖片此欄位為null (以contentHash讀取檔案)
     @Lob
     @Column(name = "data")
     private byte[] data;
 
+    // 圖片資料的大小 (bytes), 資料不在資料庫時也能直接取得
+    @Column(name = "size")
+    private Long size;
+
     @Column(name = "comment", length = 255)
     private String comment;
 
     @Column(name = "mimetype", nullable = false)
     private String mimetype;
 
+    // 圖片資料的SHA-256 (hex), 作為HTTP的強ETag
+    @Column(name = "content_hash", length = 64)
+    private String contentHash;
+
     @Column(name = "cache_enabled", nullable = false)
     private boolean cacheEnabled = false;
 
+    // 背景處理的狀態 (加入此欄位前的圖片為null, 視為READY)
+    @Enumerated(EnumType.STRING)
+    @Column(name = "status", length = 16)
+    private ImageStatus status;
+
+    @Transient   // 上傳後交給背景處理的設定, 不寫入資料庫
+    private ImageProcessingRequest processingRequest;
+
+    @Transient   // 上傳時已經取得blob的暫時引用 (存檔完成後釋放)
+    private boolean blobHeld;
+
+    @Transient   // 上傳時已經預約背景處理的名額 (存檔提交後交給背景處理, 失敗時取消)
+    private boolean processingReserved;
+
+    @Transient   // 緩存以分段儲存 (data為null, 由ImageCacheClient.readChunks讀取需要的範圍)
+    private boolean cachedInChunks;
+
     @Column(
             name = "created_at",
             nullable = false,
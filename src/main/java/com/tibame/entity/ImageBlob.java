@@ -0,0 +1,36 @@
+package com.tibame.entity;
+
+import lombok.Data;
+
+import javax.persistence.*;
+import java.io.Serializable;
+import java.time.LocalDateTime;
+
+// LocalDiskBlobStore中每份資料的引用次數 (相同內容的圖片與縮圖共用同一份資料)
+// 引用次數歸零時保留記錄, 刪除檔案時鎖住這筆記錄 (與增加引用互斥), 刪除檔案後才刪除記錄
+// 引用除了圖片與縮圖, 也包含寫入檔案後到存檔之間的暫時引用 (避免剛寫入的檔案被刪除)
+@Data
+@Entity
+@Table(name = "image_blobs")
+public class ImageBlob implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    @Id
+    @Column(name = "content_hash", nullable = false, length = 64)
+    private String contentHash;
+
+    @Column(name = "size", nullable = false)
+    private long size;
+
+    // 引用這份資料的圖片, 縮圖與暫時引用的數量
+    @Column(name = "ref_count", nullable = false)
+    private int refCount;
+
+    @Column(
+            name = "created_at",
+            nullable = false,
+            insertable = false,
+            updatable = false
+    )
+    private LocalDateTime createdAt;
+}
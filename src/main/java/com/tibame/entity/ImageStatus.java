@@ -0,0 +1,8 @@
+package com.tibame.entity;
+
+// 圖片的處理狀態 (上傳後在背景進行壓縮與產生縮圖)
+public enum ImageStatus {
+    PROCESSING, // 處理中 (已經可以讀取原圖)
+    READY,      // 處理完成
+    FAILED      // 處理失敗 (保留原圖)
+}
@@ -0,0 +1,38 @@
+package com.tibame.entity;
+
+import lombok.Data;
+
+import javax.persistence.*;
+import java.io.Serializable;
+
+// 上傳時預先產生的縮圖 (資料存放在LocalDiskBlobStore, 以contentHash讀取)
+@Data
+@Entity
+@Table(name = "image_variants")
+@IdClass(ImageVariantId.class)
+public class ImageVariant implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    @Id
+    @Column(name = "image_id", nullable = false)
+    private Long imageId;
+
+    @Id
+    @Column(name = "variant", nullable = false, length = 32)  // 例如 w320.jpeg
+    private String variant;
+
+    @Column(name = "width", nullable = false)
+    private int width;
+
+    @Column(name = "height", nullable = false)
+    private int height;
+
+    @Column(name = "mimetype", nullable = false)
+    private String mimetype;
+
+    @Column(name = "size", nullable = false)
+    private long size;
+
+    @Column(name = "content_hash", nullable = false, length = 64)
+    private String contentHash;
+}
@@ -0,0 +1,18 @@
+package com.tibame.entity;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.io.Serializable;
+
+// ImageVariant的複合主鍵 (圖片id, 縮圖名稱)
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ImageVariantId implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private Long imageId;
+    private String variant;
+}
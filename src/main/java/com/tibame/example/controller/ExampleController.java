@@ -18,6 +18,8 @@ import java.util.List;
 @RestController
 @RequestMapping("/example")
 public class ExampleController {
+    private static final int MAX_BATCH_SIZE = 100;
+
     @Autowired
     private ExampleService exampleService;
 
@@ -36,6 +38,20 @@ public class ExampleController {
         return Result.ok(allUsers, (long) allUsers.size());
     }
 
+    // 批次查詢, 例如: /example/batch?ids=1,2,3
+    @GetMapping("/batch")
+    public Result getUsersByIds(@RequestParam List<Long> ids) {
+        if (ids == null || ids.isEmpty()) {
+            return Result.fail("ids不得為空");
+        }
+        if (ids.size() > MAX_BATCH_SIZE) {
+            return Result.fail("一次最多查詢" + MAX_BATCH_SIZE + "筆資料");
+        }
+
+        List<ExampleEntity> users = exampleService.getByIds(ids);
+        return Result.ok(users, (long) users.size());
+    }
+
     @GetMapping("/{id}")
     public Result getUserById(@PathVariable Long id) {
         ExampleEntity user = exampleService.getById(id);
@@ -2,13 +2,18 @@ package com.tibame.example.dao;
 
 import com.tibame.entity.ExampleEntity;
 
+import java.util.Collection;
 import java.util.List;
 
 public interface ExampleDao {
     ExampleEntity findById(Long id);
 
+    List<ExampleEntity> findByIds(Collection<Long> ids);
+
     List<ExampleEntity> findAll();
 
+    List<Long> findAllIds();
+
     ExampleEntity findByPhone(String phone);
 
     public boolean create(ExampleEntity exampleEntity);
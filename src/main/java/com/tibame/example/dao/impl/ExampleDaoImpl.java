@@ -8,6 +8,8 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Repository;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
 @Repository
@@ -21,12 +23,30 @@ public class ExampleDaoImpl implements ExampleDao {
         return sessionFactory.getCurrentSession().get(ExampleEntity.class, id);
     }
 
+    @Override
+    @Transactional(readOnly = true)
+    public List<ExampleEntity> findByIds(Collection<Long> ids) {
+        if (ids == null || ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return sessionFactory.getCurrentSession()
+                .createQuery("from ExampleEntity where id in (:ids)", ExampleEntity.class)
+                .setParameterList("ids", ids)
+                .list();
+    }
+
     @Override
     @Transactional(readOnly = true)
     public List<ExampleEntity> findAll() {
         return sessionFactory.getCurrentSession().createQuery("from ExampleEntity", ExampleEntity.class).list();
     }
 
+    @Override
+    @Transactional(readOnly = true)
+    public List<Long> findAllIds() {
+        return sessionFactory.getCurrentSession().createQuery("select e.id from ExampleEntity e", Long.class).list();
+    }
+
     @Override
     @Transactional(readOnly = true)
     public ExampleEntity findByPhone(String phone) {
@@ -24,6 +24,13 @@ public interface ExampleService {
      */
     ExampleEntity getById(Long id);
 
+    /**
+     * 依照多個id批次尋找user (透過緩存一次查詢)
+     * @param ids 搜尋目標的id列表
+     * @return 找到的user列表 (依照傳入的順序, 不包含找不到的user)
+     */
+    List<ExampleEntity> getByIds(List<Long> ids);
+
     /**
      * 新增一個user
      * @param user 要新增的user物件
@@ -5,13 +5,18 @@ import com.tibame.entity.ExampleEntity;
 import com.tibame.example.dao.ExampleDao;
 import com.tibame.example.service.ExampleService;
 import com.tibame.utils.redis.CacheClient;
+import com.tibame.utils.redis.RedisBloomFilter;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Service;
 import org.springframework.util.StringUtils;
 
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.TimeUnit;
+import java.util.Map;
+
+import static com.tibame.utils.Constants.*;
 
 @Service
 public class ExampleServiceImpl implements ExampleService {
@@ -22,7 +27,14 @@ public class ExampleServiceImpl implements ExampleService {
     private CacheClient cacheClient;
 
     @Autowired
-    private StringRedisTemplate stringRedisTemplate;
+    @Qualifier("userIdFilter")
+    private RedisBloomFilter userIdFilter;
+
+    @PostConstruct
+    public void initUserIdFilter() {
+        // 布隆過濾器不存在時, 在背景從資料庫重建
+        userIdFilter.initialize(userDao::findAllIds);
+    }
 
     @Override
     public List<ExampleEntity> getAll() {
@@ -31,33 +43,61 @@ public class ExampleServiceImpl implements ExampleService {
 
     @Override
     public ExampleEntity getById(Long id) {
+        // 確定不存在的id直接回傳 (不上鎖, 不查資料庫, 不寫入空值)
+        if (!userIdFilter.mightContain(id)) {
+            return null;
+        }
+
         // Redis緩存工具測試
         ExampleEntity user = cacheClient.queryWithMutexAndLogicExpire(
-                "cache:user:",
-                "lock:user:",
+                CACHE_USER,
+                LOCK_USER,
                 id,
                 ExampleEntity.class,
-                60L,
-                30L,
-                1800L,
-                TimeUnit.SECONDS,
+                CACHE_USER_DATA_TTL,
+                CACHE_USER_STATUS_TTL,
+                CACHE_USER_NATURAL_TTL,
                 userDao::findById
         );
 
         return user;
     }
 
+    @Override
+    public List<ExampleEntity> getByIds(List<Long> ids) {
+        // 批次查詢: 一次MGET, 緩存不存在的資料以一次IN查詢取得
+        Map<Long, ExampleEntity> users = cacheClient.queryMany(
+                CACHE_USER,
+                LOCK_USER,
+                userIdFilter.filter(ids),
+                ExampleEntity.class,
+                CACHE_USER_DATA_TTL,
+                CACHE_USER_STATUS_TTL,
+                CACHE_USER_NATURAL_TTL,
+                ExampleEntity::getId,
+                userDao::findByIds
+        );
+
+        return new ArrayList<>(users.values());
+    }
+
     @Override
     public boolean create(ExampleEntity user) {
         user.setId(null);
 
-        return userDao.create(user);
+        if (userDao.create(user)) {
+            userIdFilter.add(user.getId());
+            return true;
+        }
+        return false;
     }
 
     @Override
     public boolean deleteById(Long id) {
         if (userDao.deleteById(id)) {
-            stringRedisTemplate.delete("cache:user:" + id);
+            // 同時清除本地緩存與Redis緩存
+            cacheClient.delete(CACHE_USER + id);
+            userIdFilter.remove(id);
             return true;
         } else {
             return false;
@@ -67,7 +107,7 @@ public class ExampleServiceImpl implements ExampleService {
     @Override
     public ExampleEntity update(ExampleEntity user) {
         if (userDao.update(user)) {
-            stringRedisTemplate.delete("cache:user:" + user.getId());
+            cacheClient.delete(CACHE_USER + user.getId());
             return user;
         } else {
             return null;
@@ -0,0 +1,45 @@
+package com.tibame.image.controller;
+
+import com.tibame.dto.Result;
+import com.tibame.image.job.ImageBlobMigrationJob;
+import com.tibame.image.job.ImageProcessingQueue;
+import com.tibame.utils.redis.ImageCacheClient;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+@RestController
+@RequestMapping("/admin/image")
+public class ImageAdminController {
+    @Autowired
+    private ImageBlobMigrationJob migrationJob;
+    @Autowired
+    private ImageProcessingQueue processingQueue;
+    @Autowired
+    private ImageCacheClient imageCacheClient;
+
+    @GetMapping("/processing")
+    public Result getProcessingStats() {
+        return Result.ok(processingQueue.getStats());
+    }
+
+    @GetMapping("/cache")
+    public Result getCacheStats() {
+        return Result.ok(imageCacheClient.getAdmissionStats());
+    }
+
+    @PostMapping("/migration")
+    public Result startMigration() {
+        if (!migrationJob.start()) {
+            return Result.fail("搬移作業已經在執行中");
+        }
+        return Result.ok(migrationJob.getStatus());
+    }
+
+    @GetMapping("/migration")
+    public Result getMigrationStatus() {
+        return Result.ok(migrationJob.getStatus());
+    }
+}
@@ -1,49 +1,148 @@
 package com.tibame.image.controller;
 
+import com.tibame.dto.ImageMeta;
 import com.tibame.dto.ImageUploadRequest;
 import com.tibame.dto.Result;
 import com.tibame.entity.Image;
+import com.tibame.entity.ImageStatus;
 import com.tibame.image.service.ImageService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.CacheControl;
 import org.springframework.http.HttpHeaders;
-import org.springframework.http.HttpStatus;
-import org.springframework.http.MediaType;
+import org.springframework.http.HttpRange;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 @RestController
 @RequestMapping("/image")
 public class ImageController {
+    private static final String IMAGE_CACHE_CONTROL = CacheControl.maxAge(1, TimeUnit.DAYS).cachePublic().getHeaderValue();
+    // 處理中的圖片每次都需要以ETag重新確認
+    private static final String PROCESSING_CACHE_CONTROL = CacheControl.noCache().getHeaderValue();
+
     @Autowired
     private ImageService imageService;
 
     @GetMapping("/{id}")
-    public ResponseEntity<byte[]> getImageById(@PathVariable Long id) {
-        Image image = imageService.findById(id);
-        if (image != null) {
-            HttpHeaders headers = new HttpHeaders();
-            headers.setContentType(MediaType.parseMediaType(image.getMimetype()));
-            return new ResponseEntity<>(image.getData(), headers, HttpStatus.OK);
+    public void getImageById(
+            @PathVariable Long id,
+            @RequestParam(required = false) Integer w,
+            WebRequest webRequest,
+            HttpServletRequest request,
+            HttpServletResponse response
+    ) throws IOException {
+        // 指定寬度時使用最接近的縮圖, 客戶端接受WebP時優先使用WebP
+        String accept = request.getHeader(HttpHeaders.ACCEPT);
+        boolean acceptWebp = w != null && accept != null && accept.contains("image/webp");
+        if (w != null) {
+            response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+        }
+
+        // 先只查詢基本資訊, 條件請求可以在不讀取圖片資料的情況下回應304
+        ImageMeta meta = imageService.findMetaById(id, w, acceptWebp);
+        if (meta == null) {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        // 背景處理完成後圖片不會再變更, 允許瀏覽器與CDN快取
+        // 處理中回傳的是原圖 (縮圖也以原圖代替), 處理完成後會在同一個id下被取代, 不能長時間快取
+        response.setHeader(HttpHeaders.CACHE_CONTROL, meta.getStatus() == ImageStatus.PROCESSING ? PROCESSING_CACHE_CONTROL : IMAGE_CACHE_CONTROL);
+        long lastModified = meta.getCreatedAt() == null
+                ? -1L
+                : meta.getCreatedAt().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        // 設定ETag與Last-Modified, 符合If-None-Match/If-Modified-Since時設定304並回傳true
+        if (webRequest.checkNotModified(meta.getContentHash(), lastModified)) {
+            return;
+        }
+
+        long size = meta.getSize();
+        long offset = 0;
+        long length = -1;
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        String rangeHeader = request.getHeader(HttpHeaders.RANGE);
+        if (rangeHeader != null && isRangeApplicable(request.getHeader(HttpHeaders.IF_RANGE), meta)) {
+            try {
+                List<HttpRange> ranges = HttpRange.parseRanges(rangeHeader);
+                if (ranges.size() == 1) {
+                    offset = ranges.get(0).getRangeStart(size);
+                    long end = ranges.get(0).getRangeEnd(size);
+                    length = end - offset + 1;
+                    response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                    response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + offset + "-" + end + "/" + size);
+                }
+                // 多段範圍(multipart/byteranges)很少使用, 直接回傳完整的圖片
+            } catch (IllegalArgumentException e) {
+                // 格式錯誤或超出圖片範圍
+                response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + size);
+                response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            }
         }
-        return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+
+        // 直接寫入回應的串流, 不在記憶體中組出完整的byte[]
+        boolean found = imageService.writeById(id, w, acceptWebp, offset, length, (mimetype, contentLength) -> {
+            response.setContentType(mimetype);
+            response.setContentLengthLong(contentLength);
+            return response.getOutputStream();
+        });
+        if (!found) {
+            // 查詢基本資訊後圖片剛好被刪除
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+        }
+    }
+
+    /**
+     * If-Range只支援強ETag: 不帶If-Range, 或ETag與目前的圖片相同時才回應部分內容
+     */
+    private boolean isRangeApplicable(String ifRange, ImageMeta meta) {
+        return ifRange == null
+                || (meta.getContentHash() != null && ifRange.equals("\"" + meta.getContentHash() + "\""));
     }
 
     @PostMapping
     public Result handleFileUpload(ImageUploadRequest imageUploadRequest) {
+        Image image = null;
         try {
             // 將上傳的檔案處理成需要的格式
-            Image image = imageService.upload(imageUploadRequest);
+            image = imageService.upload(imageUploadRequest);
 
             String url = "image/" + imageService.save(image).getId();
             return Result.ok(url);
         }catch (IllegalArgumentException e) {
             // 接收imageService拋出的異常訊息
             return Result.fail("上傳失敗：" + e.getMessage());
+        } catch (RejectedExecutionException e) {
+            // 圖片處理佇列已滿
+            return Result.fail("上傳失敗：伺服器忙碌中，請稍後再試");
         } catch (Exception e) {
             // TODO: 考慮是否要做log處理
             e.printStackTrace();
             return Result.fail("上傳失敗：系統錯誤");
+        } finally {
+            // 沒有進入save時(例如無法開啟事務)釋放上傳時取得的暫時引用與處理名額
+            if (image != null) {
+                imageService.discard(image);
+            }
+        }
+    }
+
+    @GetMapping("/{id}/status")
+    public Result getImageStatus(@PathVariable Long id) {
+        ImageStatus status = imageService.findStatusById(id);
+        if (status == null) {
+            return Result.fail("找不到這張圖片");
         }
+        return Result.ok(status);
     }
 
     @DeleteMapping("/{id}")
@@ -0,0 +1,15 @@
+package com.tibame.image.dao;
+
+public interface ImageBlobDao {
+    void acquire(String contentHash, long size);
+
+    boolean release(String contentHash);
+
+    long findRefCount(String contentHash);
+
+    boolean lockUnreferenced(String contentHash);
+
+    void deleteUnreferenced(String contentHash);
+
+    long countReferences(String contentHash);
+}
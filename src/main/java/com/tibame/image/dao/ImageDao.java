@@ -1,12 +1,30 @@
 package com.tibame.image.dao;
 
+import com.tibame.dto.ImageMeta;
 import com.tibame.entity.Image;
+import com.tibame.entity.ImageStatus;
+
+import java.util.List;
 
 public interface ImageDao  {
     Image findById(Long id);
 
+    List<Long> findAllIds();
+
+    ImageMeta findMetaById(Long id);
+
+    byte[] findDataChunk(Long id, long offset, int length);
+
+    List<Long> findIdsWithData(Long afterId, int limit);
+
+    ImageStatus findStatusById(Long id);
+
+    int updateStatus(Long id, ImageStatus status);
+
+    int clearData(Long id, String contentHash, long size);
+
     Image save(Image image);
 
-    void deleteById(Long id);
+    int deleteById(Long id);
 
 }
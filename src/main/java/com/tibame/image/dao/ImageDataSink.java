@@ -0,0 +1,17 @@
+package com.tibame.image.dao;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+// 圖片資料的輸出目標 (串流回應使用)
+@FunctionalInterface
+public interface ImageDataSink {
+    /**
+     * 開始寫入圖片資料前呼叫 (例如設定回應的標頭)
+     *
+     * @param mimetype 資料型態
+     * @param length   資料長度
+     * @return 寫入圖片資料的串流
+     */
+    OutputStream open(String mimetype, long length) throws IOException;
+}
@@ -0,0 +1,15 @@
+package com.tibame.image.dao;
+
+import com.tibame.entity.ImageVariant;
+
+import java.util.List;
+
+public interface ImageVariantDao {
+    ImageVariant findNearest(Long imageId, int width, String mimetype);
+
+    List<String> findHashesByImageId(Long imageId);
+
+    ImageVariant save(ImageVariant variant);
+
+    int deleteByImageId(Long imageId);
+}
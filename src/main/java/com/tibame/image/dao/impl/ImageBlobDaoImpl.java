@@ -0,0 +1,86 @@
+package com.tibame.image.dao.impl;
+
+import com.tibame.image.dao.ImageBlobDao;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+@Repository
+public class ImageBlobDaoImpl implements ImageBlobDao {
+    @Autowired
+    private SessionFactory sessionFactory;
+
+    @Override
+    @Transactional
+    public void acquire(String contentHash, long size) {
+        // 以一個語句完成新增或遞增, 同時上傳相同內容時不會因為主鍵衝突失敗
+        sessionFactory.getCurrentSession()
+                .createNativeQuery(
+                        "INSERT INTO image_blobs (content_hash, size, ref_count) VALUES (:contentHash, :size, 1) " +
+                                "ON DUPLICATE KEY UPDATE ref_count = ref_count + 1"
+                )
+                .setParameter("contentHash", contentHash)
+                .setParameter("size", size)
+                .executeUpdate();
+    }
+
+    @Override
+    @Transactional
+    public boolean release(String contentHash) {
+        int updated = sessionFactory.getCurrentSession()
+                .createQuery("update ImageBlob b set b.refCount = b.refCount - 1 where b.contentHash = :contentHash and b.refCount > 0")
+                .setParameter("contentHash", contentHash)
+                .executeUpdate();
+        // 回傳是否已經沒有引用 (記錄保留到刪除檔案時; 加入引用次數前的資料沒有記錄, 不會被判定為沒有引用)
+        return updated > 0 && findRefCount(contentHash) == 0;
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public long findRefCount(String contentHash) {
+        Integer refCount = sessionFactory.getCurrentSession()
+                .createQuery("select b.refCount from ImageBlob b where b.contentHash = :contentHash", Integer.class)
+                .setParameter("contentHash", contentHash)
+                .uniqueResult();
+        return refCount == null ? 0L : refCount;
+    }
+
+    @Override
+    @Transactional
+    public boolean lockUnreferenced(String contentHash) {
+        // 鎖住記錄到事務結束, 期間增加引用(INSERT ... ON DUPLICATE KEY UPDATE)會等待
+        Object refCount = sessionFactory.getCurrentSession()
+                .createNativeQuery("SELECT ref_count FROM image_blobs WHERE content_hash = :contentHash FOR UPDATE")
+                .setParameter("contentHash", contentHash)
+                .uniqueResult();
+        return refCount != null && ((Number) refCount).intValue() == 0;
+    }
+
+    @Override
+    @Transactional
+    public void deleteUnreferenced(String contentHash) {
+        sessionFactory.getCurrentSession()
+                .createQuery("delete from ImageBlob b where b.contentHash = :contentHash and b.refCount = 0")
+                .setParameter("contentHash", contentHash)
+                .executeUpdate();
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public long countReferences(String contentHash) {
+        // 直接計算圖片與縮圖中的引用 (刪除檔案前的最後確認, 包含加入引用次數前的資料)
+        Session session = sessionFactory.getCurrentSession();
+        long images = session.createQuery("select count(i) from Image i where i.contentHash = :contentHash", Long.class)
+                .setParameter("contentHash", contentHash)
+                .uniqueResult();
+        long variants = session.createQuery("select count(v) from ImageVariant v where v.contentHash = :contentHash", Long.class)
+                .setParameter("contentHash", contentHash)
+                .uniqueResult();
+        long blobs = session.createQuery("select count(b) from ImageBlob b where b.contentHash = :contentHash and b.refCount > 0", Long.class)
+                .setParameter("contentHash", contentHash)
+                .uniqueResult();
+        return images + variants + blobs;
+    }
+}
@@ -1,11 +1,17 @@
 package com.tibame.image.dao.impl;
 
+import com.tibame.dto.ImageMeta;
 import com.tibame.entity.Image;
+import com.tibame.entity.ImageStatus;
 import com.tibame.image.dao.ImageDao;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
+import org.hibernate.type.BinaryType;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.List;
 
 @Repository
 public class ImageDaoImpl implements ImageDao {
@@ -13,11 +19,96 @@ public class ImageDaoImpl implements ImageDao {
     private SessionFactory sessionFactory;
 
     @Override
+    @Transactional(readOnly = true)
     public Image findById(Long id) {
         Session currentSession = sessionFactory.getCurrentSession();
         return currentSession.get(Image.class, id);
     }
 
+    @Override
+    @Transactional(readOnly = true)
+    public List<Long> findAllIds() {
+        // 只查詢id欄位 (重建布隆過濾器使用, 不載入圖片資料)
+        return sessionFactory.getCurrentSession()
+                .createQuery("select i.id from Image i", Long.class)
+                .list();
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public ImageMeta findMetaById(Long id) {
+        // 不載入圖片資料, 資料長度由資料庫計算
+        return sessionFactory.getCurrentSession()
+                .createQuery(
+                        "select new com.tibame.dto.ImageMeta(i.id, i.mimetype, i.cacheEnabled, coalesce(i.size, cast(length(i.data) as long)), i.contentHash, i.createdAt, i.status) " +
+                                "from Image i where i.id = :id",
+                        ImageMeta.class
+                )
+                .setParameter("id", id)
+                .uniqueResult();
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public byte[] findDataChunk(Long id, long offset, int length) {
+        // MySQL Connector/J 讀取BLOB時會將整個欄位載入記憶體 (即使使用Blob.getBinaryStream)
+        // 改以SUBSTRING分段讀取, 每次只佔用length大小的記憶體
+        return (byte[]) sessionFactory.getCurrentSession()
+                .createNativeQuery("SELECT SUBSTRING(data, :offset, :length) AS chunk FROM images WHERE id = :id")
+                .addScalar("chunk", BinaryType.INSTANCE)
+                .setParameter("offset", offset + 1) // SUBSTRING的位置從1開始
+                .setParameter("length", length)
+                .setParameter("id", id)
+                .uniqueResult();
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public List<Long> findIdsWithData(Long afterId, int limit) {
+        // 依照id分頁 (搬移失敗的圖片不會在下一批重複出現)
+        return sessionFactory.getCurrentSession()
+                .createQuery("select i.id from Image i where i.data is not null and i.id > :afterId order by i.id", Long.class)
+                .setParameter("afterId", afterId == null ? Long.MIN_VALUE : afterId)
+                .setMaxResults(limit)
+                .list();
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public ImageStatus findStatusById(Long id) {
+        List<ImageStatus> statuses = sessionFactory.getCurrentSession()
+                .createQuery("select i.status from Image i where i.id = :id", ImageStatus.class)
+                .setParameter("id", id)
+                .list();
+        if (statuses.isEmpty()) {
+            return null;
+        }
+        // 加入狀態欄位前的圖片
+        return statuses.get(0) == null ? ImageStatus.READY : statuses.get(0);
+    }
+
+    @Override
+    @Transactional
+    public int updateStatus(Long id, ImageStatus status) {
+        return sessionFactory.getCurrentSession()
+                .createQuery("update Image i set i.status = :status where i.id = :id")
+                .setParameter("status", status)
+                .setParameter("id", id)
+                .executeUpdate();
+    }
+
+    @Override
+    @Transactional
+    public int clearData(Long id, String contentHash, long size) {
+        // 圖片資料已經寫入blob store, 資料庫只保留基本資訊
+        return sessionFactory.getCurrentSession()
+                .createQuery("update Image i set i.data = null, i.contentHash = :contentHash, i.size = :size where i.id = :id")
+                .setParameter("contentHash", contentHash)
+                .setParameter("size", size)
+                .setParameter("id", id)
+                .executeUpdate();
+    }
+
     @Override
     public Image save(Image image) {
         Session currentSession = sessionFactory.getCurrentSession();
@@ -26,11 +117,11 @@ public class ImageDaoImpl implements ImageDao {
     }
 
     @Override
-    public void deleteById(Long id) {
-        Session currentSession = sessionFactory.getCurrentSession();
-        Image image = currentSession.get(Image.class, id);
-        if (image != null) {
-            currentSession.delete(image);
-        }
+    public int deleteById(Long id) {
+        // 直接以HQL刪除, 不需要先將整筆資料(包含圖片資料)載入
+        return sessionFactory.getCurrentSession()
+                .createQuery("delete from Image i where i.id = :id")
+                .setParameter("id", id)
+                .executeUpdate();
     }
 }
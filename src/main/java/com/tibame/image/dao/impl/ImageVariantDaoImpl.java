@@ -0,0 +1,56 @@
+package com.tibame.image.dao.impl;
+
+import com.tibame.entity.ImageVariant;
+import com.tibame.image.dao.ImageVariantDao;
+import org.hibernate.SessionFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.List;
+
+@Repository
+public class ImageVariantDaoImpl implements ImageVariantDao {
+    @Autowired
+    private SessionFactory sessionFactory;
+
+    @Override
+    @Transactional(readOnly = true)
+    public ImageVariant findNearest(Long imageId, int width, String mimetype) {
+        // 寬度不小於要求的縮圖中最小的一張 (沒有時回傳null, 由呼叫端改用原圖)
+        return sessionFactory.getCurrentSession()
+                .createQuery(
+                        "from ImageVariant v where v.imageId = :imageId and v.width >= :width and v.mimetype = :mimetype " +
+                                "order by v.width",
+                        ImageVariant.class
+                )
+                .setParameter("imageId", imageId)
+                .setParameter("width", width)
+                .setParameter("mimetype", mimetype)
+                .setMaxResults(1)
+                .uniqueResult();
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public List<String> findHashesByImageId(Long imageId) {
+        return sessionFactory.getCurrentSession()
+                .createQuery("select v.contentHash from ImageVariant v where v.imageId = :imageId", String.class)
+                .setParameter("imageId", imageId)
+                .list();
+    }
+
+    @Override
+    public ImageVariant save(ImageVariant variant) {
+        sessionFactory.getCurrentSession().saveOrUpdate(variant);
+        return variant;
+    }
+
+    @Override
+    public int deleteByImageId(Long imageId) {
+        return sessionFactory.getCurrentSession()
+                .createQuery("delete from ImageVariant v where v.imageId = :imageId")
+                .setParameter("imageId", imageId)
+                .executeUpdate();
+    }
+}
@@ -0,0 +1,92 @@
+package com.tibame.image.job;
+
+import com.tibame.image.service.ImageService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+@Slf4j
+@Component
+public class ImageBlobMigrationJob {
+    // 將images資料表中的圖片資料搬到LocalDiskBlobStore
+    // 在背景的單一執行緒中依照id分批處理, 每批之間暫停一下, 不與一般請求搶資料庫連線
+    // 中途停止(重新部署)後再次啟動會從頭查詢, 已經搬移的圖片不會再出現
+
+    private static final int BATCH_SIZE = 20;
+    private static final long BATCH_PAUSE = 200L; // 毫秒
+
+    @Autowired
+    private ImageService imageService;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "image-blob-migration");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile Long lastId;
+    private volatile long batches;
+
+    /**
+     * 開始搬移
+     *
+     * @return 是否成功啟動 (已經在執行中時回傳false)
+     */
+    public boolean start() {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        lastId = null;
+        batches = 0;
+        executor.execute(this::run);
+        return true;
+    }
+
+    /**
+     * 取得搬移進度
+     *
+     * @return 執行狀態
+     */
+    public Map<String, Object> getStatus() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("running", running.get());
+        status.put("batches", batches);
+        status.put("lastId", lastId);
+        return status;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void run() {
+        log.info("Image blob migration started");
+        try {
+            Long afterId = null;
+            while (!Thread.currentThread().isInterrupted()) {
+                afterId = imageService.migrateToBlobStore(afterId, BATCH_SIZE);
+                if (afterId == null) {
+                    break;
+                }
+                lastId = afterId;
+                batches++;
+                Thread.sleep(BATCH_PAUSE);
+            }
+            log.info("Image blob migration finished after {} batches", batches);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.error("Image blob migration stopped at id {}", lastId, e);
+        } finally {
+            running.set(false);
+        }
+    }
+}
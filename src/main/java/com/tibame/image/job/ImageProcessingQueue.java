@@ -0,0 +1,127 @@
+package com.tibame.image.job;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+@Slf4j
+@Component
+public class ImageProcessingQueue {
+    // 圖片處理(解碼, 壓縮, 產生縮圖)的背景佇列
+    // 問題:
+    //      上傳請求在Tomcat的執行緒上解碼與壓縮, 10MB的圖片需要數百毫秒, 大量上傳時會佔滿請求執行緒
+    // 設計:
+    //      執行緒數量: 與CPU核心數相同 (純CPU運算, 更多執行緒只會互相搶CPU)
+    //      佇列上限:   以Semaphore控制 (執行中 + 排隊中), 上傳時先預約名額再存檔
+    //                 沒有名額時等待RESERVE_TIMEOUT, 仍然沒有就拒絕上傳 (不會存下一張永遠等不到處理的圖片)
+
+    private static final int POOL_SIZE = Runtime.getRuntime().availableProcessors();
+    private static final int QUEUE_CAPACITY = POOL_SIZE * 4;
+    private static final long RESERVE_TIMEOUT = 2000L; // 毫秒
+
+    private final ThreadPoolExecutor executor;
+    private final Semaphore permits = new Semaphore(POOL_SIZE + QUEUE_CAPACITY);
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    public ImageProcessingQueue() {
+        AtomicInteger threadNumber = new AtomicInteger();
+        // 佇列長度由permits控制, 這裡的佇列不會超過QUEUE_CAPACITY
+        this.executor = new ThreadPoolExecutor(
+                POOL_SIZE,
+                POOL_SIZE,
+                0L,
+                TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(),
+                r -> new Thread(r, "image-processing-" + threadNumber.incrementAndGet())
+        );
+    }
+
+    /**
+     * 預約一個處理名額 (佇列已滿時最多等待RESERVE_TIMEOUT)
+     * 預約成功後必須呼叫submit或cancel
+     *
+     * @return 是否預約成功
+     */
+    public boolean reserve() {
+        try {
+            if (permits.tryAcquire(RESERVE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        rejected.increment();
+        return false;
+    }
+
+    /**
+     * 取消預約 (例如存檔失敗)
+     */
+    public void cancel() {
+        permits.release();
+    }
+
+    /**
+     * 使用預約的名額加入處理工作
+     *
+     * @param name 工作名稱 (記錄用)
+     * @param task 處理工作
+     */
+    public void submit(String name, Runnable task) {
+        submitted.increment();
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                    completed.increment();
+                } catch (Throwable e) {
+                    failed.increment();
+                    log.error("Image processing {} failed", name, e);
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            // 已經關閉
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * 取得處理佇列的統計數據
+     *
+     * @return 統計資料
+     */
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("poolSize", (long) POOL_SIZE);
+        stats.put("queueDepth", (long) executor.getQueue().size());
+        stats.put("active", (long) executor.getActiveCount());
+        stats.put("available", (long) permits.availablePermits());
+        stats.put("submitted", submitted.sum());
+        stats.put("rejected", rejected.sum());
+        stats.put("completed", completed.sum());
+        stats.put("failed", failed.sum());
+        return stats;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        // 處理中的圖片已經存有原圖, 關閉時不等待排隊中的工作 (狀態維持PROCESSING)
+        executor.shutdownNow();
+    }
+}
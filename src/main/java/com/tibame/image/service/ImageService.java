@@ -1,7 +1,12 @@
 package com.tibame.image.service;
 
+import com.tibame.dto.ImageMeta;
 import com.tibame.dto.ImageUploadRequest;
 import com.tibame.entity.Image;
+import com.tibame.entity.ImageStatus;
+import com.tibame.image.dao.ImageDataSink;
+
+import java.io.IOException;
 
 public interface ImageService {
 
@@ -12,9 +17,49 @@ public interface ImageService {
      */
     Image findById(Long id);
 
+    /**
+     * 根據id將圖片資料寫入輸出目標 (不將整張圖片載入記憶體)
+     * 有緩存的圖片直接寫出, 沒有緩存的圖片從資料庫分段讀取後寫出
+     * @param id 圖片的id
+     * @param sink 圖片資料的輸出目標
+     * @return 是否找到這張圖片
+     */
+    boolean writeById(Long id, ImageDataSink sink) throws IOException;
+
+    /**
+     * 根據id將圖片資料的指定範圍寫入輸出目標 (HTTP Range請求使用)
+     * @param id 圖片的id
+     * @param width 需要的寬度, 使用最接近的縮圖 (null表示原圖)
+     * @param acceptWebp 客戶端是否接受WebP (有WebP縮圖時優先使用)
+     * @param offset 開始位置
+     * @param length 寫入的長度 (小於0表示寫到結尾)
+     * @param sink 圖片資料的輸出目標 (open收到的長度為實際寫入的長度)
+     * @return 是否找到這張圖片
+     */
+    boolean writeById(Long id, Integer width, boolean acceptWebp, long offset, long length, ImageDataSink sink) throws IOException;
+
+    /**
+     * 根據id查詢圖片的基本資訊 (不讀取圖片資料)
+     * 優先從緩存讀取, 用於回應HTTP條件請求
+     * @param id 圖片的id
+     * @return 圖片的基本資訊
+     */
+    ImageMeta findMetaById(Long id);
+
+    /**
+     * 根據id查詢圖片或縮圖的基本資訊 (不讀取圖片資料)
+     * @param id 圖片的id
+     * @param width 需要的寬度, 使用最接近的縮圖 (null表示原圖)
+     * @param acceptWebp 客戶端是否接受WebP
+     * @return 圖片或縮圖的基本資訊
+     */
+    ImageMeta findMetaById(Long id, Integer width, boolean acceptWebp);
+
     /**
      * 將上傳的檔案處理成Image物件
      * 並使用id worker取得id (尚未儲存進資料庫)
+     * 圖片資料先寫入blob store並取得暫時引用, 需要背景處理時預約處理名額 (處理佇列已滿時拋出RejectedExecutionException)
+     * 之後需要呼叫save (存檔完成或失敗時釋放), 沒有呼叫save時需要呼叫discard
      * @param imageUploadRequest 前端上傳的檔案以及相關設定
      * @return 處理後的Image物件
      */
@@ -22,13 +67,37 @@ public interface ImageService {
 
     /**
      * 將Image物件存入資料庫
+     * 需要壓縮或產生縮圖時, 存檔提交後使用upload預約的名額交給背景處理
      * @param image 處理完畢的Image物件
      * @return Image物件
      */
     Image save(Image image);
 
     /**
-     * 根據id刪除對應的照片
+     * 釋放upload取得但尚未由save釋放的暫時引用與處理名額 (例如開啟存檔的事務失敗)
+     * 已經進入save的圖片不會重複釋放, 可以在存檔後無條件呼叫
+     * @param image upload回傳的Image物件
+     */
+    void discard(Image image);
+
+    /**
+     * 查詢圖片的背景處理狀態
+     * @param id 圖片的id
+     * @return 處理狀態, 找不到圖片時回傳null
+     */
+    ImageStatus findStatusById(Long id);
+
+    /**
+     * 將資料庫中的圖片資料移到blob store (每次處理一批, 依照id排序)
+     * 單張圖片失敗時記錄並跳過, 資料仍保留在資料庫
+     * @param afterId 從這個id之後開始 (第一批傳入null)
+     * @param batchSize 這一批最多處理的數量
+     * @return 這一批的最後一個id, 已經沒有需要移動的圖片時回傳null
+     */
+    Long migrateToBlobStore(Long afterId, int batchSize);
+
+    /**
+     * 根據id刪除對應的照片 (圖片與縮圖的資料沒有其他引用時, 提交後從blob store刪除)
      * @param id 圖片的id
      */
     void deleteById(Long id);
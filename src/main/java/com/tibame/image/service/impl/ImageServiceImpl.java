@@ -1,26 +1,62 @@
 package com.tibame.image.service.impl;
 
+import com.tibame.dto.ImageMeta;
+import com.tibame.dto.ImageProcessingRequest;
 import com.tibame.dto.ImageUploadRequest;
 import com.tibame.entity.Image;
+import com.tibame.entity.ImageStatus;
+import com.tibame.entity.ImageVariant;
+import com.tibame.image.dao.ImageBlobDao;
 import com.tibame.image.dao.ImageDao;
+import com.tibame.image.dao.ImageDataSink;
+import com.tibame.image.dao.ImageVariantDao;
+import com.tibame.image.job.ImageProcessingQueue;
 import com.tibame.image.service.ImageService;
 import com.tibame.utils.basic.ImageUtil;
+import com.tibame.utils.blob.LocalDiskBlobStore;
+import com.tibame.utils.blob.LocalDiskBlobStore.StoredBlob;
 import com.tibame.utils.redis.ImageCacheClient;
+import com.tibame.utils.redis.RedisBloomFilter;
 import com.tibame.utils.redis.RedisIdWorker;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.TransactionDefinition;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.web.multipart.MultipartFile;
 
+import javax.annotation.PostConstruct;
+import java.awt.Dimension;
 import java.awt.image.BufferedImage;
+import java.io.File;
 import java.io.IOException;
-import java.util.concurrent.TimeUnit;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
 
 import static com.tibame.utils.Constants.*;
 
+@Slf4j
 @Service
 public class ImageServiceImpl implements ImageService {
+    private static final String MIMETYPE_JPEG = "image/jpeg";
+    private static final String MIMETYPE_WEBP = "image/webp";
+    private static final String MIMETYPE_GIF = "image/gif";
+    // 縮圖的格式 (沒有對應的ImageWriter時跳過, JDK預設沒有WebP)
+    private static final String[] VARIANT_MIMETYPES = {MIMETYPE_JPEG, MIMETYPE_WEBP};
+    private static final float VARIANT_QUALITY = 0.85f;
+    // 從分段緩存寫出時每次讀取的段數 (與資料庫分段讀取的大小相同)
+    private static final int CACHE_CHUNK_BATCH = Math.max(1, STREAM_CHUNK_SIZE / ImageCacheClient.CHUNK_SIZE);
+
     @Autowired
     private ImageDao imageDao;
     @Autowired
@@ -28,22 +64,352 @@ public class ImageServiceImpl implements ImageService {
     @Autowired
     private ImageCacheClient imageCacheClient;
     @Autowired
-    private StringRedisTemplate stringRedisTemplate;
+    private LocalDiskBlobStore blobStore;
+    @Autowired
+    private ImageVariantDao variantDao;
+    @Autowired
+    private ImageBlobDao blobDao;
+    @Autowired
+    private ImageProcessingQueue processingQueue;
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+    // 上傳時產生的縮圖寬度
+    @Value("${image.variant.widths:320,640,1280}")
+    private int[] variantWidths;
+    @Autowired
+    @Qualifier("imageIdFilter")
+    private RedisBloomFilter imageIdFilter;
+
+    // 暫時引用的取得/釋放與事務完成後的清除, 使用獨立的新事務 (立即提交)
+    private TransactionTemplate blobTemplate;
+
+    @PostConstruct
+    public void initBlobTemplate() {
+        blobTemplate = new TransactionTemplate(transactionTemplate.getTransactionManager());
+        blobTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+    }
+
+    @PostConstruct
+    public void initImageIdFilter() {
+        // 布隆過濾器不存在時, 在背景從資料庫重建
+        imageIdFilter.initialize(imageDao::findAllIds);
+    }
 
     @Override
     @Transactional(readOnly = true)
     public Image findById(Long id) {
-        // 圖片緩存
-        return imageCacheClient.queryWithMutexAndLogicExpire(
+        // 確定不存在的id直接回傳 (不上鎖, 不查資料庫, 不寫入狀態碼)
+        if (!imageIdFilter.mightContain(id)) {
+            return null;
+        }
+
+        // 圖片緩存 (確認緩存狀態時只查詢基本資訊, 不開啟緩存的圖片最後才載入資料)
+        Image image = imageCacheClient.queryWithMutexAndLogicExpire(
                 CACHE_IMG,
                 LOCK_IMG,
                 id,
                 CACHE_IMG_DATA_TTL,
                 CACHE_IMG_STATUS_TTL,
                 CACHE_IMG_NATURAL_TTL,
-                TimeUnit.SECONDS,
-                imageDao::findById
+                imageId -> loadForCache(CACHE_IMG + imageId, imageId, null, false, null)
+        );
+        if (image != null && image.getData() == null) {
+            image = loadImage(id);
+        }
+        return image;
+    }
+
+    @Override
+    public boolean writeById(Long id, ImageDataSink sink) throws IOException {
+        return writeById(id, null, false, 0, -1, sink);
+    }
+
+    @Override
+    public boolean writeById(Long id, Integer width, boolean acceptWebp, long offset, long length, ImageDataSink sink) throws IOException {
+        // 不開啟事務: 分段讀取時每一段各自使用一個短事務, 寫給慢速的客戶端時不會佔用資料庫連線
+        if (!imageIdFilter.mightContain(id)) {
+            return false;
+        }
+
+        // 不開啟緩存的圖片只查詢基本資訊 (資料之後分段讀取)
+        Integer variantWidth = resolveVariantWidth(width);
+        String variant = variantName(variantWidth, acceptWebp);
+        ImageMeta[] metaHolder = new ImageMeta[1];
+        String keyPrefix = cachePrefix(CACHE_IMG, variant);
+        Image image = imageCacheClient.queryWithMutexAndLogicExpire(
+                keyPrefix,
+                cachePrefix(LOCK_IMG, variant),
+                id,
+                CACHE_IMG_DATA_TTL,
+                CACHE_IMG_STATUS_TTL,
+                CACHE_IMG_NATURAL_TTL,
+                imageId -> loadForCache(keyPrefix + imageId, imageId, variantWidth, acceptWebp, metaHolder)
         );
+        if (image == null) {
+            return false;
+        }
+
+        if (image.getData() != null) {
+            // 有緩存(或通過准入)的圖片, 直接寫出
+            byte[] data = image.getData();
+            int start = (int) Math.min(offset, data.length);
+            int end = length < 0 ? data.length : (int) Math.min(data.length, offset + length);
+            OutputStream out = sink.open(image.getMimetype(), end - start);
+            out.write(data, start, end - start);
+            out.flush();
+            return true;
+        }
+        if (image.isCachedInChunks()) {
+            // 分段緩存的大圖片, 只讀取涵蓋範圍的段落
+            long start = Math.min(offset, image.getSize());
+            long end = length < 0 ? image.getSize() : Math.min(image.getSize(), offset + length);
+            if (writeCachedChunks(image, start, end, sink)) {
+                return true;
+            }
+            // 段落在讀取前已被淘汰, 改由blob store或資料庫讀取
+        }
+
+        // 查詢是由其他執行緒完成時(single flight)沒有記錄到基本資訊, 重新查詢一次
+        ImageMeta meta = metaHolder[0] != null ? metaHolder[0] : loadMeta(id, variantWidth, acceptWebp);
+        if (meta == null) {
+            return false;
+        }
+
+        long start = Math.min(offset, meta.getSize());
+        long end = length < 0 ? meta.getSize() : Math.min(meta.getSize(), offset + length);
+        if (blobStore.exists(meta.getContentHash())) {
+            // 圖片資料在blob store, 由檔案直接寫出 (不使用資料庫連線)
+            OutputStream out = sink.open(meta.getMimetype(), end - start);
+            blobStore.transferTo(meta.getContentHash(), start, end - start, out);
+            out.flush();
+            return true;
+        }
+        if (meta.getVariant() != null) {
+            // 縮圖只存放在blob store
+            throw new IOException("Blob of image " + id + " variant " + meta.getVariant() + " is missing");
+        }
+
+        // 尚未搬移的圖片, 從資料庫分段讀取
+        OutputStream out = sink.open(meta.getMimetype(), end - start);
+        for (long position = start; position < end; position += STREAM_CHUNK_SIZE) {
+            byte[] chunk = imageDao.findDataChunk(id, position, (int) Math.min((long) STREAM_CHUNK_SIZE, end - position));
+            if (chunk == null || chunk.length == 0) {
+                // 圖片在寫出途中被刪除或更新, 已經送出的標頭無法更改, 中斷這次回應
+                throw new IOException("Image " + id + " changed while streaming");
+            }
+            out.write(chunk);
+        }
+        out.flush();
+        return true;
+    }
+
+    /**
+     * 從分段的緩存寫出指定範圍 (每次pipeline讀取CACHE_CHUNK_BATCH段)
+     *
+     * @return 是否寫出, 第一批段落已被淘汰時回傳false (尚未送出標頭, 呼叫端可以改用其他方式讀取)
+     */
+    private boolean writeCachedChunks(Image image, long start, long end, ImageDataSink sink) throws IOException {
+        int chunkSize = ImageCacheClient.CHUNK_SIZE;
+        int first = (int) (start / chunkSize);
+        int last = (int) ((end + chunkSize - 1) / chunkSize);
+        OutputStream out = null;
+        long position = start;
+        for (int from = first; from < last; from += CACHE_CHUNK_BATCH) {
+            List<byte[]> chunks = imageCacheClient.readChunks(image.getContentHash(), from, Math.min(last, from + CACHE_CHUNK_BATCH));
+            if (chunks.contains(null)) {
+                if (out == null) {
+                    return false;
+                }
+                // 段落在寫出途中被淘汰, 已經送出的標頭無法更改, 中斷這次回應
+                throw new IOException("Cached chunks of " + image.getContentHash() + " evicted while streaming");
+            }
+            if (out == null) {
+                out = sink.open(image.getMimetype(), end - start);
+            }
+            for (int i = 0; i < chunks.size(); i++) {
+                long chunkStart = (long) (from + i) * chunkSize;
+                int chunkFrom = (int) (position - chunkStart);
+                int chunkTo = (int) Math.min(chunks.get(i).length, end - chunkStart);
+                out.write(chunks.get(i), chunkFrom, chunkTo - chunkFrom);
+                position = chunkStart + chunkTo;
+            }
+        }
+        if (out == null) {
+            // 空的範圍
+            out = sink.open(image.getMimetype(), 0);
+        }
+        out.flush();
+        return true;
+    }
+
+    @Override
+    public ImageMeta findMetaById(Long id) {
+        return findMetaById(id, null, false);
+    }
+
+    @Override
+    public ImageMeta findMetaById(Long id, Integer width, boolean acceptWebp) {
+        if (!imageIdFilter.mightContain(id)) {
+            return null;
+        }
+
+        // 有緩存的圖片只讀取緩存中的欄位 (不讀取圖片資料)
+        Integer variantWidth = resolveVariantWidth(width);
+        ImageMeta meta = imageCacheClient.getMeta(cachePrefix(CACHE_IMG, variantName(variantWidth, acceptWebp)) + id);
+        if (meta != null) {
+            meta.setId(id);
+            return meta;
+        }
+        // 沒有緩存或不開啟緩存的圖片, 查詢資料庫 (同樣不載入圖片資料)
+        return loadMeta(id, variantWidth, acceptWebp);
+    }
+
+    /**
+     * 緩存使用的資料庫查詢: 先查詢基本資訊, 只有可能通過准入的圖片才載入圖片資料
+     * (重建時確認緩存狀態, 或是不開啟緩存的圖片的狀態碼檢查, 都不會讀取圖片資料)
+     *
+     * @param key          緩存的key (以讀取頻率判斷是否可能通過准入)
+     * @param variantWidth 縮圖的寬度 (null表示原圖)
+     * @param metaHolder   記錄查詢到的基本資訊 (不需要時傳入null)
+     */
+    private Image loadForCache(String key, Long id, Integer variantWidth, boolean acceptWebp, ImageMeta[] metaHolder) {
+        ImageMeta meta = loadMeta(id, variantWidth, acceptWebp);
+        if (meta == null) {
+            return null;
+        }
+
+        Image image = new Image();
+        image.setId(id);
+        image.setMimetype(meta.getMimetype());
+        image.setSize(meta.getSize());
+        image.setContentHash(meta.getContentHash());
+        image.setCreatedAt(meta.getCreatedAt());
+        // 處理中的圖片之後會被取代, 不建立緩存 (緩存中的基本資訊因此一定是處理完成的圖片)
+        image.setCacheEnabled(Boolean.TRUE.equals(meta.getCacheEnabled()) && meta.getStatus() != ImageStatus.PROCESSING);
+        if (image.isCacheEnabled() && imageCacheClient.mightAdmit(key, meta.getSize())) {
+            // 可能需要建立緩存, 載入圖片資料 (沒有通過准入時由這次讀取直接使用)
+            image.setData(loadData(meta));
+        } else if (metaHolder != null) {
+            metaHolder[0] = meta;
+        }
+        return image;
+    }
+
+    /**
+     * 查詢圖片或縮圖的基本資訊 (不載入圖片資料)
+     * 沒有符合的縮圖時(原圖比要求的寬度小, 或是上傳時沒有產生)改用原圖
+     */
+    private ImageMeta loadMeta(Long id, Integer variantWidth, boolean acceptWebp) {
+        if (variantWidth != null) {
+            ImageVariant variant = acceptWebp ? variantDao.findNearest(id, variantWidth, MIMETYPE_WEBP) : null;
+            if (variant == null) {
+                variant = variantDao.findNearest(id, variantWidth, MIMETYPE_JPEG);
+            }
+            if (variant != null) {
+                // 縮圖的緩存與原圖的設定無關, 一律交給准入判斷
+                ImageMeta meta = new ImageMeta(
+                        id,
+                        variant.getMimetype(),
+                        true,
+                        variant.getSize(),
+                        variant.getContentHash(),
+                        null
+                );
+                meta.setVariant(variant.getVariant());
+                return meta;
+            }
+        }
+        return imageDao.findMetaById(id);
+    }
+
+    /**
+     * 讀取圖片資料, 優先從blob store讀取 (尚未搬移的原圖從資料庫讀取)
+     */
+    private byte[] loadData(ImageMeta meta) {
+        byte[] data;
+        try {
+            data = meta.getContentHash() == null ? null : blobStore.read(meta.getContentHash());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (data == null && meta.getVariant() == null) {
+            Image image = imageDao.findById(meta.getId());
+            data = image == null ? null : image.getData();
+        }
+        if (data == null) {
+            throw new IllegalStateException("Image " + meta.getId() + " has no data in database or blob store");
+        }
+        return data;
+    }
+
+    /**
+     * 選擇縮圖的寬度: 設定的寬度中不小於要求寬度的最小值
+     *
+     * @return 縮圖的寬度, 不需要縮圖(沒有指定或超過最大的縮圖)時回傳null
+     */
+    private Integer resolveVariantWidth(Integer width) {
+        if (width == null) {
+            return null;
+        }
+        Integer nearest = null;
+        for (int variantWidth : variantWidths) {
+            if (variantWidth >= width && (nearest == null || variantWidth < nearest)) {
+                nearest = variantWidth;
+            }
+        }
+        return nearest;
+    }
+
+    /**
+     * 縮圖的名稱, 例如 w320.jpeg (原圖回傳null)
+     */
+    private static String variantName(Integer width, String mimetype) {
+        if (width == null) {
+            return null;
+        }
+        return "w" + width + "." + mimetype.substring(mimetype.indexOf('/') + 1);
+    }
+
+    private static String variantName(Integer width, boolean acceptWebp) {
+        return variantName(width, acceptWebp ? MIMETYPE_WEBP : MIMETYPE_JPEG);
+    }
+
+    /**
+     * 縮圖使用獨立的緩存key, 例如 cache:img:w320.jpeg:{id}
+     */
+    private static String cachePrefix(String prefix, String variant) {
+        return variant == null ? prefix : prefix + variant + ":";
+    }
+
+    /**
+     * 查詢完整的圖片, 資料已經移到blob store時從檔案讀取
+     */
+    private Image loadImage(Long id) {
+        Image image = imageDao.findById(id);
+        if (image == null || image.getData() != null) {
+            return image;
+        }
+
+        byte[] data;
+        try {
+            data = blobStore.read(image.getContentHash());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (data == null) {
+            throw new IllegalStateException("Image " + id + " has no data in database or blob store");
+        }
+        // 複製一份再放入資料, 不修改Hibernate管理中的物件 (避免事務結束時把資料寫回資料庫)
+        Image copy = new Image();
+        copy.setId(image.getId());
+        copy.setData(data);
+        copy.setSize(image.getSize());
+        copy.setComment(image.getComment());
+        copy.setMimetype(image.getMimetype());
+        copy.setContentHash(image.getContentHash());
+        copy.setCacheEnabled(image.isCacheEnabled());
+        copy.setCreatedAt(image.getCreatedAt());
+        return copy;
     }
 
     @Override
@@ -81,51 +447,93 @@ public class ImageServiceImpl implements ImageService {
                 comment = file.getOriginalFilename();
             }
 
-            byte[] data = file.getBytes();
-            BufferedImage bufferedImage = ImageUtil.getBufferedImage(data);
-
-            // 無設定是否進行圖片壓縮的情形
-            if (resizeEnabled == null) {
-                if (width != null || height != null) {
-                    // 傳入長寬其中一個參數, 視為開啟壓縮
-                    resizeEnabled = true;
-                } else if (bufferedImage.getWidth() > 1600) {
-                    // 寬度超過1600, 進行壓縮
-                    width = 1600;
-                    resizeEnabled = true;
-                } else if (bufferedImage.getHeight() > 900) {
-                    // 高度超過900, 進行壓縮
-                    height = 900;
-                    resizeEnabled = true;
-                } else {
-                    resizeEnabled = false;
+            // 上傳的暫存檔直接以串流寫入blob store (同時計算hash), 不將整張圖片載入記憶體
+            // blob store無法寫入時才讀成byte[], 存檔時保留在資料庫
+            byte[] data = null;
+            StoredBlob stored = null;
+            Dimension dimension;
+            try {
+                // 寫入後先取得暫時引用, 存檔前不會被相同內容的圖片刪除
+                stored = putAndHold(out -> {
+                    try (InputStream in = file.getInputStream()) {
+                        in.transferTo(out);
+                    }
+                });
+                // 只讀取標頭中的寬高, 解碼與壓縮交給背景處理
+                File storedFile = blobStore.locate(stored.getHash());
+                dimension = storedFile == null ? null : ImageUtil.readSize(storedFile);
+            } catch (IOException e) {
+                log.warn("Failed to write upload to blob store, keeping data in memory", e);
+                if (stored != null) {
+                    // 寫入後讀取標頭失敗
+                    releaseHold(stored.getHash());
                 }
-            } else if (resizeEnabled && width == null && height == null) {
-                throw new IllegalArgumentException("要開啟圖片壓縮, 請至少設定寬度或是高度");
+                data = file.getBytes();
+                stored = null;
+                dimension = ImageUtil.readSize(data);
             }
+            long size = stored != null ? stored.getSize() : data.length;
 
-            // 進行圖片壓縮
-            if (resizeEnabled) {
-                data = ImageUtil.resizeImage(bufferedImage, width, height, 0.85f);
-                contentType = "image/jpeg";
-            }
+            // 之後的檢查失敗時釋放暫時引用 (沒有其他引用時刪除檔案)
+            try {
+                // 無設定是否進行圖片壓縮的情形
+                if (resizeEnabled == null) {
+                    if (width != null || height != null) {
+                        // 傳入長寬其中一個參數, 視為開啟壓縮
+                        resizeEnabled = true;
+                    } else if (dimension == null) {
+                        // 無法讀取的格式 (例如JDK預設不支援WebP), 保留原圖
+                        resizeEnabled = false;
+                    } else if (dimension.getWidth() > 1600) {
+                        // 寬度超過1600, 進行壓縮
+                        width = 1600;
+                        resizeEnabled = true;
+                    } else if (dimension.getHeight() > 900) {
+                        // 高度超過900, 進行壓縮
+                        height = 900;
+                        resizeEnabled = true;
+                    } else {
+                        resizeEnabled = false;
+                    }
+                } else if (resizeEnabled && width == null && height == null) {
+                    throw new IllegalArgumentException("要開啟圖片壓縮, 請至少設定寬度或是高度");
+                }
+                if (resizeEnabled && dimension == null) {
+                    throw new IllegalArgumentException("無法讀取圖片內容, 不能進行壓縮");
+                }
 
-            Image image = new Image();
-            // 從id worker中取得ID
-            image.setId(idWorker.nextId("image"));
+                Image image = new Image();
+                // 從id worker中取得ID
+                image.setId(idWorker.nextId("image"));
 
-            // 設定對應參數
-            image.setComment(comment);
-            image.setMimetype(contentType);
-            image.setData(data);
+                // 設定對應參數
+                image.setComment(comment);
+                image.setMimetype(contentType);
+                image.setData(data);
+                // 圖片資料的hash作為ETag (背景壓縮後會重新計算)
+                image.setContentHash(stored != null ? stored.getHash() : ImageUtil.contentHash(data));
+                image.setSize(size);
+                image.setBlobHeld(stored != null);
 
-            // 設定圖片緩存機制 (無傳遞參數的處理方式, 檔案小於設定值時啟動緩存)
-            if (cacheEnabled == null) {
-                cacheEnabled = image.getData().length <= CACHE_IMG_SIZE;
-            }
-            image.setCacheEnabled(cacheEnabled);
+                // 設定圖片緩存機制 (無傳遞參數時允許緩存, 實際是否緩存由ImageCacheClient依照讀取頻率與記憶體預算決定)
+                image.setCacheEnabled(cacheEnabled == null || cacheEnabled);
 
-            return image;
+                // 需要壓縮或產生縮圖時, 存檔後交給背景處理
+                if (resizeEnabled || (dimension != null && !MIMETYPE_GIF.equals(contentType))) {
+                    image.setProcessingRequest(new ImageProcessingRequest(resizeEnabled, width, height));
+                    // 在開啟事務前預約處理名額 (等待名額時不佔用資料庫連線), 佇列已滿時拒絕這次上傳
+                    if (!processingQueue.reserve()) {
+                        throw new RejectedExecutionException("Image processing queue is full");
+                    }
+                    image.setProcessingReserved(true);
+                }
+                return image;
+            } catch (RuntimeException e) {
+                if (stored != null) {
+                    releaseHold(stored.getHash());
+                }
+                throw e;
+            }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -134,14 +542,359 @@ public class ImageServiceImpl implements ImageService {
     @Override
     @Transactional
     public Image save(Image image) {
-        // 檢查並刪除redis中的資料
-        stringRedisTemplate.delete(CACHE_IMG + image.getId());
+        ImageProcessingRequest processingRequest = image.getProcessingRequest();
+        // 事務提交後才交給背景處理 (確保處理時讀得到這筆資料), 存檔失敗時取消預約
+        // 不論是否提交都釋放暫時引用: 提交時已經有圖片的引用, 沒有提交時沒有其他引用的檔案會被刪除
+        // 釋放後清除標記, 之後呼叫discard不會重複釋放
+        Long id = image.getId();
+        String contentHash = image.getContentHash();
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                // 再加入一次布隆過濾器: 提交前的加入可能發生在重建的快照之後, 寫入即將被換掉的舊key
+                imageIdFilter.add(id);
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                if (image.isProcessingReserved()) {
+                    if (status == STATUS_COMMITTED) {
+                        processingQueue.submit("image " + id, () -> process(id, processingRequest));
+                    } else {
+                        processingQueue.cancel();
+                    }
+                    image.setProcessingReserved(false);
+                }
+                if (image.isBlobHeld()) {
+                    releaseHold(contentHash);
+                    image.setBlobHeld(false);
+                }
+            }
+        });
+
+        // 先加入布隆過濾器, 避免存檔後到加入前的讀取被判定為不存在
+        imageIdFilter.add(image.getId());
+        // 檢查並刪除redis中的資料 (同時通知其他節點)
+        imageCacheClient.delete(CACHE_IMG + image.getId());
+        image.setStatus(processingRequest != null ? ImageStatus.PROCESSING : ImageStatus.READY);
+
+        // 圖片資料寫入blob store, 資料庫只保留基本資訊 (寫入失敗時資料保留在資料庫)
+        if (image.getData() != null && image.getContentHash() != null) {
+            try {
+                // 先取得暫時引用再寫入: 相同內容的檔案已經存在時略過寫入, 之後也不會被刪除
+                hold(image.getContentHash(), image.getData().length);
+                image.setBlobHeld(true);
+                blobStore.put(image.getContentHash(), image.getData());
+                image.setData(null);
+            } catch (IOException e) {
+                log.warn("Failed to write image {} to blob store, keeping data in database", image.getId(), e);
+            }
+        }
+        // 相同內容的圖片共用同一份資料, 只增加引用次數
+        if (image.getContentHash() != null) {
+            blobDao.acquire(image.getContentHash(), image.getSize() == null ? 0L : image.getSize());
+        }
         return imageDao.save(image);
     }
 
+    @Override
+    public void discard(Image image) {
+        // 存檔時已經由事務完成後的處理釋放 (標記已清除), 這裡只處理沒有進入save的情形
+        if (image.isProcessingReserved()) {
+            processingQueue.cancel();
+            image.setProcessingReserved(false);
+        }
+        if (image.isBlobHeld()) {
+            releaseHold(image.getContentHash());
+            image.setBlobHeld(false);
+        }
+    }
+
+    @Override
+    public ImageStatus findStatusById(Long id) {
+        if (!imageIdFilter.mightContain(id)) {
+            return null;
+        }
+        return imageDao.findStatusById(id);
+    }
+
+    /**
+     * 背景處理: 解碼, 壓縮, 產生縮圖, 完成後更新狀態並清除緩存
+     * 在ImageProcessingQueue的執行緒上執行, 失敗時狀態改為FAILED (保留原圖)
+     */
+    private void process(Long id, ImageProcessingRequest request) {
+        // 寫入blob store的結果在記錄引用前持有暫時引用, 結束時釋放 (失敗時沒有引用的檔案會被刪除)
+        List<String> held = new ArrayList<>();
+        try {
+            ImageMeta meta = imageDao.findMetaById(id);
+            if (meta == null) {
+                // 處理前已經被刪除
+                return;
+            }
+
+            // 解碼與壓縮都直接讀取blob store中的檔案, 結果以串流寫回blob store
+            File file = blobStore.locate(meta.getContentHash());
+            StoredBlob movedToBlob = null;
+            if (file == null) {
+                // 上傳時blob store無法寫入, 資料還在資料庫中, 先搬到blob store
+                Image image = loadImage(id);
+                if (image == null) {
+                    return;
+                }
+                byte[] data = image.getData();
+                movedToBlob = putAndHold(out -> out.write(data));
+                held.add(movedToBlob.getHash());
+                file = blobStore.locate(movedToBlob.getHash());
+            }
+
+            // 以跳過像素的方式解碼, 不完整解碼原圖 (沒有對應的ImageReader時不壓縮)
+            File source = file;
+            StoredBlob resized = null;
+            if (request.isResizeEnabled() && ImageUtil.readSize(source) != null) {
+                resized = putAndHold(out -> ImageUtil.resizeImage(source, request.getWidth(), request.getHeight(), 0.85f, out));
+                held.add(resized.getHash());
+                file = blobStore.locate(resized.getHash());
+            }
+            // 縮圖依照壓縮(裁切)後的圖片產生, 只解碼到最大縮圖寬度的需要
+            BufferedImage decoded = MIMETYPE_GIF.equals(meta.getMimetype()) || file == null
+                    ? null
+                    : ImageUtil.readSubsampled(file, maxVariantWidth() * 2, 0);
+            List<ImageVariant> variants = decoded == null ? new ArrayList<>() : createVariants(id, decoded, held);
+
+            StoredBlob processed = resized != null ? resized : movedToBlob;
+            long processedSize = processed != null ? processed.getSize() : meta.getSize();
+            boolean isResized = resized != null;
+            transactionTemplate.executeWithoutResult(status -> {
+                Image managed = imageDao.findById(id);
+                if (managed == null) {
+                    return;
+                }
+                if (processed != null && !processed.getHash().equals(managed.getContentHash())) {
+                    // 壓縮後改為引用新的資料, 原圖沒有其他引用時刪除
+                    blobDao.acquire(processed.getHash(), processedSize);
+                    releaseBlobs(Collections.singletonList(managed.getContentHash()));
+                }
+                if (processed != null) {
+                    managed.setData(null);
+                    managed.setContentHash(processed.getHash());
+                    managed.setSize(processedSize);
+                }
+                if (isResized) {
+                    managed.setMimetype(MIMETYPE_JPEG);
+                }
+                managed.setStatus(ImageStatus.READY);
+                for (ImageVariant variant : variants) {
+                    variantDao.save(variant);
+                    blobDao.acquire(variant.getContentHash(), variant.getSize());
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            imageDao.updateStatus(id, ImageStatus.FAILED);
+            throw new IllegalStateException("Failed to process image " + id, e);
+        } finally {
+            for (String hash : held) {
+                releaseHold(hash);
+            }
+            // 處理期間的讀取可能緩存了原圖 (包含以原圖代替的縮圖)
+            evictCaches(id);
+        }
+    }
+
+    private int maxVariantWidth() {
+        int max = 0;
+        for (int width : variantWidths) {
+            max = Math.max(max, width);
+        }
+        return max;
+    }
+
+    /**
+     * 刪除圖片與所有縮圖的緩存
+     */
+    private void evictCaches(Long id) {
+        imageCacheClient.delete(CACHE_IMG + id);
+        for (int width : variantWidths) {
+            for (String mimetype : VARIANT_MIMETYPES) {
+                imageCacheClient.delete(cachePrefix(CACHE_IMG, variantName(width, mimetype)) + id);
+            }
+        }
+    }
+
+    /**
+     * 依照設定的寬度產生縮圖並寫入blob store (只產生比原圖小的尺寸)
+     * 縮圖不是必要的資料, 失敗時只記錄, 讀取時會改用原圖
+     */
+    private List<ImageVariant> createVariants(Long imageId, BufferedImage source, List<String> held) {
+        List<ImageVariant> variants = new ArrayList<>();
+        try {
+            for (int width : variantWidths) {
+                if (width >= source.getWidth()) {
+                    continue;
+                }
+                BufferedImage scaled = ImageUtil.scaleToWidth(source, width);
+                for (String mimetype : VARIANT_MIMETYPES) {
+                    if (!ImageUtil.canWrite(mimetype)) {
+                        continue;
+                    }
+                    // 直接編碼到blob store的暫存檔, 不產生中間的byte[]
+                    StoredBlob stored = putAndHold(out -> ImageUtil.encode(scaled, mimetype, VARIANT_QUALITY, out));
+                    held.add(stored.getHash());
+
+                    ImageVariant variant = new ImageVariant();
+                    variant.setImageId(imageId);
+                    variant.setVariant(variantName(width, mimetype));
+                    variant.setWidth(scaled.getWidth());
+                    variant.setHeight(scaled.getHeight());
+                    variant.setMimetype(mimetype);
+                    variant.setSize(stored.getSize());
+                    variant.setContentHash(stored.getHash());
+                    variants.add(variant);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("Failed to create variants of image {}", imageId, e);
+        }
+        return variants;
+    }
+
+    @Override
+    public Long migrateToBlobStore(Long afterId, int batchSize) {
+        // 不開啟事務: 每張圖片各自查詢與更新, 同時只有一張圖片的資料在記憶體中
+        List<Long> ids = imageDao.findIdsWithData(afterId, batchSize);
+        if (ids.isEmpty()) {
+            return null;
+        }
+
+        for (Long id : ids) {
+            try {
+                Image image = imageDao.findById(id);
+                if (image == null || image.getData() == null) {
+                    continue;
+                }
+                // 舊的圖片沒有contentHash, 搬移時一併補上
+                // 是否已經記錄過引用以image_blobs判斷 (加入image_blobs前上傳的圖片有contentHash但沒有記錄)
+                boolean untracked = image.getContentHash() == null || blobDao.findRefCount(image.getContentHash()) == 0;
+                String contentHash = ImageUtil.contentHash(image.getData());
+                long size = image.getData().length;
+                hold(contentHash, size);
+                try {
+                    blobStore.put(contentHash, image.getData());
+                    transactionTemplate.executeWithoutResult(status -> {
+                        imageDao.clearData(id, contentHash, size);
+                        if (untracked) {
+                            blobDao.acquire(contentHash, size);
+                        }
+                    });
+                } finally {
+                    releaseHold(contentHash);
+                }
+            } catch (Exception e) {
+                log.warn("Failed to migrate image {} to blob store", id, e);
+            }
+        }
+        return ids.get(ids.size() - 1);
+    }
+
     @Override
     @Transactional
     public void deleteById(Long id) {
-        imageDao.deleteById(id);
+        ImageMeta meta = imageDao.findMetaById(id);
+        if (meta == null || imageDao.deleteById(id) == 0) {
+            // 圖片不存在, 不需要清除緩存
+            return;
+        }
+        // 一併刪除縮圖與所有的緩存, 沒有其他引用的資料在提交後刪除
+        List<String> hashes = new ArrayList<>(variantDao.findHashesByImageId(id));
+        hashes.add(meta.getContentHash());
+        variantDao.deleteByImageId(id);
+        releaseBlobs(hashes);
+        evictCaches(id);
+        // 布隆過濾器無法刪除元素, 只記錄刪除次數 (累積一定數量後重建)
+        imageIdFilter.remove(id);
+    }
+
+    /**
+     * 減少資料的引用次數, 引用歸零的資料在事務提交後從blob store刪除 (需要在事務中呼叫)
+     */
+    private void releaseBlobs(List<String> hashes) {
+        List<String> unreferenced = new ArrayList<>();
+        for (String hash : hashes) {
+            if (hash != null && blobDao.release(hash)) {
+                unreferenced.add(hash);
+            }
+        }
+        if (unreferenced.isEmpty()) {
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                for (String hash : unreferenced) {
+                    deleteIfUnreferenced(hash);
+                }
+            }
+        });
+    }
+
+    /**
+     * 寫入blob store並取得暫時引用 (呼叫端記錄正式的引用後, 或失敗時, 以releaseHold釋放)
+     * 相同內容的檔案已經存在時put會略過寫入, 若檔案在取得引用前被刪除, 重新寫入一次 (已經持有引用, 之後不會再被刪除)
+     */
+    private StoredBlob putAndHold(LocalDiskBlobStore.BlobWriter writer) throws IOException {
+        StoredBlob stored = blobStore.put(writer);
+        hold(stored.getHash(), stored.getSize());
+        try {
+            if (!blobStore.exists(stored.getHash())) {
+                blobStore.put(writer);
+            }
+        } catch (IOException | RuntimeException e) {
+            releaseHold(stored.getHash());
+            throw e;
+        }
+        return stored;
+    }
+
+    /**
+     * 取得暫時引用 (立即提交, 引用次數大於0的資料不會被刪除)
+     */
+    private void hold(String hash, long size) {
+        blobTemplate.executeWithoutResult(status -> blobDao.acquire(hash, size));
+    }
+
+    /**
+     * 釋放暫時引用, 沒有其他引用時刪除檔案
+     */
+    private void releaseHold(String hash) {
+        try {
+            Boolean unreferenced = blobTemplate.execute(status -> blobDao.release(hash));
+            if (Boolean.TRUE.equals(unreferenced)) {
+                deleteIfUnreferenced(hash);
+            }
+        } catch (RuntimeException e) {
+            log.warn("Failed to release blob {}", hash, e);
+        }
+    }
+
+    /**
+     * 引用次數歸零的資料從blob store刪除
+     * 鎖住image_blobs的記錄後才確認與刪除, 同時增加引用的一方會等到刪除完成, 之後發現檔案不存在時重新寫入
+     * 另外確認圖片與縮圖的引用 (加入引用次數前的資料沒有記錄)
+     */
+    private void deleteIfUnreferenced(String hash) {
+        try {
+            blobTemplate.executeWithoutResult(status -> {
+                if (!blobDao.lockUnreferenced(hash) || blobDao.countReferences(hash) > 0) {
+                    return;
+                }
+                try {
+                    blobStore.delete(hash);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                blobDao.deleteUnreferenced(hash);
+            });
+        } catch (RuntimeException e) {
+            log.warn("Failed to delete unreferenced blob {}", hash, e);
+        }
     }
 }
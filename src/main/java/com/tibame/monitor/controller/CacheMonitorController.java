@@ -0,0 +1,37 @@
+package com.tibame.monitor.controller;
+
+import com.tibame.dto.Result;
+import com.tibame.utils.redis.CacheClient;
+import com.tibame.utils.redis.CacheRebuildScheduler;
+import com.tibame.utils.redis.RefreshAheadScheduler;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+// 緩存運作狀態的監控數據 (命中率, 重建排程等)
+@RestController
+@RequestMapping("/monitor")
+public class CacheMonitorController {
+    @Autowired
+    private CacheClient cacheClient;
+    @Autowired
+    private CacheRebuildScheduler rebuildScheduler;
+    @Autowired
+    private RefreshAheadScheduler refreshAheadScheduler;
+
+    @GetMapping("/cache")
+    public Result getCacheStats() {
+        return Result.ok(cacheClient.getStats());
+    }
+
+    @GetMapping("/rebuild")
+    public Result getRebuildStats() {
+        return Result.ok(rebuildScheduler.getStats());
+    }
+
+    @GetMapping("/refresh")
+    public Result getRefreshAheadStats() {
+        return Result.ok(refreshAheadScheduler.getStats());
+    }
+}
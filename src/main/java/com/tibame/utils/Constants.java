@@ -1,5 +1,11 @@
 package com.tibame.utils;
 
+import com.tibame.utils.redis.TtlPolicy;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.tibame.utils.redis.TtlPolicy.Distribution.UNIFORM;
+
 public class Constants {
     public static final String ROLE_USER = "user";
     public static final String ROLE_COMPANY = "company";
@@ -8,9 +14,15 @@ public class Constants {
     public static final Long LOGIN_TTL = 3600L;
     public static final String LOCK_IMG = "lock:img:";
     public static final String CACHE_IMG = "cache:img:";
-    public static final Long CACHE_IMG_SIZE = 51200L; // 50 * 1024 (50KB)
-    public static final Long CACHE_IMG_DATA_TTL = 60L;
-    public static final Long CACHE_IMG_STATUS_TTL = 30L;
-    public static final Long CACHE_IMG_NATURAL_TTL = 1800L;
+    public static final int STREAM_CHUNK_SIZE = 262144; // 256 * 1024 (256KB, 未緩存圖片每次從資料庫讀取的大小)
+    // 緩存的過期時間加入 ±20% 的隨機偏移, 避免暖機時寫入的資料同時過期 (緩存雪崩)
+    public static final TtlPolicy CACHE_IMG_DATA_TTL = TtlPolicy.of(60L, TimeUnit.SECONDS).withJitter(UNIFORM, 0.2);
+    public static final TtlPolicy CACHE_IMG_STATUS_TTL = TtlPolicy.of(30L, TimeUnit.SECONDS).withJitter(UNIFORM, 0.2);
+    public static final TtlPolicy CACHE_IMG_NATURAL_TTL = TtlPolicy.of(1800L, TimeUnit.SECONDS).withJitter(UNIFORM, 0.2);
+    public static final String LOCK_USER = "lock:user:";
+    public static final String CACHE_USER = "cache:user:";
+    public static final TtlPolicy CACHE_USER_DATA_TTL = TtlPolicy.of(60L, TimeUnit.SECONDS).withJitter(UNIFORM, 0.2);
+    public static final TtlPolicy CACHE_USER_STATUS_TTL = TtlPolicy.of(30L, TimeUnit.SECONDS).withJitter(UNIFORM, 0.2);
+    public static final TtlPolicy CACHE_USER_NATURAL_TTL = TtlPolicy.of(1800L, TimeUnit.SECONDS).withJitter(UNIFORM, 0.2);
 
 }
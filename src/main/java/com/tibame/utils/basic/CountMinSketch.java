@@ -0,0 +1,97 @@
+package com.tibame.utils.basic;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+public class CountMinSketch {
+    // 以固定大小的記憶體估計每個key的出現次數 (緩存的准入判斷使用)
+    // 做法:
+    //      DEPTH列計數器, 每列以不同的hash選一格; 估計值取所有列中最小的一格 (只會高估, 不會低估)
+    // 老化:
+    //      累計次數達到 width * SAMPLE_RATIO 後所有計數器減半, 過去熱門但已經沒人讀取的key會逐漸降溫
+    // 注意:
+    //      各節點各自記錄 (不經過Redis), 減半時沒有上鎖, 同時的遞增可能遺失, 對估計值的影響可以忽略
+
+    private static final int DEPTH = 4;
+    private static final int SAMPLE_RATIO = 10;
+    private static final long[] SEEDS = {
+            0x9e3779b97f4a7c15L, 0xc2b2ae3d27d4eb4fL, 0x165667b19e3779f9L, 0xd6e8feb86659fd93L
+    };
+
+    private final int width;
+    private final int mask;
+    private final AtomicIntegerArray counters;
+    private final AtomicInteger additions = new AtomicInteger();
+    private final int resetThreshold;
+
+    /**
+     * @param expectedKeys 預計追蹤的key數量 (每列的寬度取不小於此值的2的次方)
+     */
+    public CountMinSketch(int expectedKeys) {
+        this.width = Integer.highestOneBit(Math.max(16, expectedKeys) - 1) << 1;
+        this.mask = width - 1;
+        this.counters = new AtomicIntegerArray(width * DEPTH);
+        this.resetThreshold = width * SAMPLE_RATIO;
+    }
+
+    /**
+     * 記錄一次出現
+     */
+    public void increment(String key) {
+        long hash = hash(key);
+        for (int row = 0; row < DEPTH; row++) {
+            counters.incrementAndGet(indexOf(hash, row));
+        }
+        if (additions.incrementAndGet() >= resetThreshold) {
+            reset();
+        }
+    }
+
+    /**
+     * 估計出現次數 (減半後的數值, 只會高估)
+     */
+    public int estimate(String key) {
+        long hash = hash(key);
+        int min = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            min = Math.min(min, counters.get(indexOf(hash, row)));
+        }
+        return min;
+    }
+
+    private void reset() {
+        // 只讓一個執行緒進行減半
+        int current = additions.get();
+        if (current < resetThreshold || !additions.compareAndSet(current, current / 2)) {
+            return;
+        }
+        for (int i = 0; i < counters.length(); i++) {
+            counters.set(i, counters.get(i) >>> 1);
+        }
+    }
+
+    private int indexOf(long hash, int row) {
+        return row * width + (int) (mix(hash ^ SEEDS[row]) & mask);
+    }
+
+    private static long hash(String key) {
+        // FNV-1a
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    // MurmurHash3的fmix64
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -1,22 +1,210 @@
 package com.tibame.utils.basic;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
 import javax.imageio.ImageWriteParam;
 import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
 import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Dimension;
 import java.awt.Graphics2D;
+import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Iterator;
 
 public class ImageUtil {
+    // 縮圖的解碼方式:
+    //      完整解碼6000x4000的原圖需要約96MB的int像素, 再縮小到1600寬
+    //      先從標頭讀取寬高, 以ImageReadParam.setSourceSubsampling在解碼時就跳過像素 (記憶體與解碼時間都等比例減少)
+    //      跳過像素等同最近鄰取樣, 會產生鋸齒, 因此只縮到目標的SUBSAMPLE_MARGIN倍, 剩下的部分以漸進式縮放完成
+    // 漸進式縮放:
+    //      一次drawImage從很大的圖縮到很小時, 雙線性插值只參考相鄰的4個像素, 細節會變成雜訊
+    //      每次最多縮小一半, 直到目標尺寸
+    private static final int SUBSAMPLE_MARGIN = 2;
+    private static final int MIN_ENCODE_BUFFER = 16 * 1024;
+    private static final int MAX_ENCODE_BUFFER = 4 * 1024 * 1024;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * 計算圖片資料的SHA-256 (hex字串, 作為ETag使用)
+     */
+    public static String contentHash(byte[] data) {
+        try {
+            return toHex(MessageDigest.getInstance("SHA-256").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            // 所有JVM都必須支援SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 將hash轉為hex字串
+     */
+    public static String toHex(byte[] digest) {
+        char[] chars = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            chars[i * 2] = HEX[(digest[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX[digest[i] & 0xF];
+        }
+        return new String(chars);
+    }
+
     public static BufferedImage getBufferedImage(byte[] data) throws IOException {
         return ImageIO.read(new ByteArrayInputStream(data));
     }
 
+    /**
+     * 解碼時跳過像素, 解碼後的寬高不會小於指定的最小值 (原圖比最小值小時完整解碼)
+     *
+     * @param minWidth  解碼後的最小寬度 (0表示不限制)
+     * @param minHeight 解碼後的最小高度 (0表示不限制)
+     * @return 解碼後的圖片, 沒有對應的ImageReader時回傳null
+     */
+    public static BufferedImage readSubsampled(byte[] data, int minWidth, int minHeight) throws IOException {
+        return readSubsampled((Object) new ByteArrayInputStream(data), minWidth, minHeight);
+    }
+
+    /**
+     * 從檔案解碼並跳過像素 (ImageIO直接隨機讀取檔案, 不需要先將檔案載入記憶體)
+     */
+    public static BufferedImage readSubsampled(File file, int minWidth, int minHeight) throws IOException {
+        return readSubsampled((Object) file, minWidth, minHeight);
+    }
+
+    private static BufferedImage readSubsampled(Object input, int minWidth, int minHeight) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(input)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+
+                // 每subsampling個像素取一個, 解碼後的寬度為 ceil(width / subsampling)
+                int subsampling = Integer.MAX_VALUE;
+                if (minWidth > 0) {
+                    subsampling = Math.min(subsampling, width / minWidth);
+                }
+                if (minHeight > 0) {
+                    subsampling = Math.min(subsampling, height / minHeight);
+                }
+                subsampling = subsampling == Integer.MAX_VALUE ? 1 : Math.max(1, subsampling);
+
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * 縮放並裁切圖片 (從原始資料開始, 以跳過像素的方式解碼, 不完整解碼原圖)
+     *
+     * @return JPEG格式的圖片資料, 沒有對應的ImageReader時回傳null
+     */
+    public static byte[] resizeImage(byte[] data, Integer targetWidth, Integer targetHeight, float quality) throws IOException {
+        BufferedImage resized = resizeSubsampled(new ByteArrayInputStream(data), targetWidth, targetHeight);
+        return resized == null ? null : encode(resized, "image/jpeg", quality);
+    }
+
+    /**
+     * 縮放並裁切檔案中的圖片, 結果以JPEG格式直接寫入串流 (不產生中間的byte[])
+     *
+     * @return 是否成功 (沒有對應的ImageReader時回傳false, 不寫入任何資料)
+     */
+    public static boolean resizeImage(File file, Integer targetWidth, Integer targetHeight, float quality, OutputStream out) throws IOException {
+        BufferedImage resized = resizeSubsampled(file, targetWidth, targetHeight);
+        if (resized == null) {
+            return false;
+        }
+        encode(resized, "image/jpeg", quality, out);
+        return true;
+    }
+
+    private static BufferedImage resizeSubsampled(Object input, Integer targetWidth, Integer targetHeight) throws IOException {
+        if (targetWidth == null && targetHeight == null) {
+            throw new IllegalArgumentException("長寬皆無設定, 無法進行圖片縮放");
+        }
+        if (input instanceof InputStream) {
+            // 讀取兩次(標頭與內容), 需要可以重新讀取的串流
+            ((InputStream) input).mark(Integer.MAX_VALUE);
+        }
+        Dimension original = readSize(input);
+        if (original == null) {
+            return null;
+        }
+        if (input instanceof InputStream) {
+            ((InputStream) input).reset();
+        }
+
+        // 依照原圖的比例決定目標尺寸 (與解碼後的比例可能有些微差距, 先以原圖計算)
+        if (targetWidth == null) {
+            targetWidth = original.width * targetHeight / original.height;
+        } else if (targetHeight == null) {
+            targetHeight = original.height * targetWidth / original.width;
+        }
+        double scale = Math.max((double) targetWidth / original.width, (double) targetHeight / original.height);
+        int scaledWidth = (int) Math.ceil(scale * original.width);
+        int scaledHeight = (int) Math.ceil(scale * original.height);
+
+        BufferedImage decoded = readSubsampled(input, scaledWidth * SUBSAMPLE_MARGIN, scaledHeight * SUBSAMPLE_MARGIN);
+        return decoded == null ? null : scaleAndCrop(decoded, targetWidth, targetHeight);
+    }
+
+    /**
+     * 只讀取圖片標頭中的寬高 (不解碼整張圖片)
+     *
+     * @return 圖片的寬高, 沒有對應的ImageReader時回傳null
+     */
+    public static Dimension readSize(byte[] data) throws IOException {
+        return readSize(new ByteArrayInputStream(data));
+    }
+
+    /**
+     * 只讀取檔案中圖片標頭的寬高
+     */
+    public static Dimension readSize(File file) throws IOException {
+        return readSize((Object) file);
+    }
+
+    private static Dimension readSize(Object input) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(input)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                return new Dimension(reader.getWidth(0), reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
     public static byte[] resizeImage(BufferedImage originalImage, Integer targetWidth, Integer targetHeight, float quality) throws IOException {
+        // 將裁切後的圖片轉換成 JPEG 格式並設定壓縮率
+        return encode(scaleAndCrop(originalImage, targetWidth, targetHeight), "image/jpeg", quality);
+    }
+
+    private static BufferedImage scaleAndCrop(BufferedImage originalImage, Integer targetWidth, Integer targetHeight) {
         if (targetWidth == null && targetHeight == null) {
             throw new IllegalArgumentException("長寬皆無設定, 無法進行圖片縮放");
         }
@@ -39,36 +227,93 @@ public class ImageUtil {
         int scaledWidth = (int) Math.ceil(scale * originalWidth);
         int scaledHeight = (int) Math.ceil(scale * originalHeight);
 
-        BufferedImage scaledImage = new BufferedImage(scaledWidth, scaledHeight, BufferedImage.TYPE_INT_RGB);
-        Graphics2D graphics = scaledImage.createGraphics();
-        graphics.drawImage(originalImage, 0, 0, scaledWidth, scaledHeight, null);
-        graphics.dispose();
+        BufferedImage scaledImage = progressiveScale(originalImage, scaledWidth, scaledHeight);
 
         // 裁切圖片
         int x = (scaledWidth - targetWidth) / 2;
         int y = (scaledHeight - targetHeight) / 2;
-        BufferedImage croppedImage = scaledImage.getSubimage(x, y, targetWidth, targetHeight);
+        return scaledImage.getSubimage(x, y, targetWidth, targetHeight);
+    }
 
-        // 將裁切後的圖片轉換成 JPEG 格式並設定壓縮率
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    /**
+     * 依照寬度等比例縮放 (透明的部分填入白色, 轉成JPEG時不會變成黑色)
+     */
+    public static BufferedImage scaleToWidth(BufferedImage originalImage, int targetWidth) {
+        int targetHeight = Math.max(1, (int) Math.round((double) originalImage.getHeight() * targetWidth / originalImage.getWidth()));
+        return progressiveScale(originalImage, targetWidth, targetHeight);
+    }
+
+    /**
+     * 漸進式縮放: 每次最多縮小一半 (放大時一次完成)
+     * 透明的部分填入白色, 轉成JPEG時不會變成黑色
+     */
+    public static BufferedImage progressiveScale(BufferedImage source, int targetWidth, int targetHeight) {
+        BufferedImage current = source;
+        int width = source.getWidth();
+        int height = source.getHeight();
+        do {
+            width = width / 2 >= targetWidth ? width / 2 : targetWidth;
+            height = height / 2 >= targetHeight ? height / 2 : targetHeight;
+
+            BufferedImage next = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            Graphics2D graphics = next.createGraphics();
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(0, 0, width, height);
+            graphics.drawImage(current, 0, 0, width, height, null);
+            graphics.dispose();
+            current = next;
+        } while (width != targetWidth || height != targetHeight);
+        return current;
+    }
 
-        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpg");
+    /**
+     * 是否有可以輸出這個格式的ImageWriter (例如JDK預設沒有WebP)
+     */
+    public static boolean canWrite(String mimetype) {
+        return ImageIO.getImageWritersByMIMEType(mimetype).hasNext();
+    }
+
+    /**
+     * 將圖片輸出成指定的格式, 格式支援壓縮時使用指定的壓縮率
+     */
+    public static byte[] encode(BufferedImage image, String mimetype, float quality) throws IOException {
+        // 預先配置大約的容量, 避免ByteArrayOutputStream反覆擴充與複製
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(estimateEncodedSize(image));
+        encode(image, mimetype, quality, baos);
+        return baos.toByteArray();
+    }
+
+    /**
+     * 將圖片以指定的格式寫入串流
+     */
+    public static void encode(BufferedImage image, String mimetype, float quality, OutputStream out) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByMIMEType(mimetype);
         if (!writers.hasNext()) {
-            throw new IllegalStateException("No writers found for format 'jpg'");
+            throw new IllegalStateException("No writers found for " + mimetype);
         }
 
         ImageWriter writer = writers.next();
-        try (ImageOutputStream ios = ImageIO.createImageOutputStream(baos)) {
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
             writer.setOutput(ios);
             ImageWriteParam param = writer.getDefaultWriteParam();
-            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-            param.setCompressionQuality(quality);
+            if (param.canWriteCompressed()) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                if (param.getCompressionTypes() != null && param.getCompressionType() == null) {
+                    param.setCompressionType(param.getCompressionTypes()[0]);
+                }
+                param.setCompressionQuality(quality);
+            }
 
-            writer.write(null, new javax.imageio.IIOImage(croppedImage, null, null), param);
+            writer.write(null, new javax.imageio.IIOImage(image, null, null), param);
         } finally {
             writer.dispose();
         }
+    }
 
-        return baos.toByteArray();
+    // 壓縮後約每像素2 bits (JPEG品質0.85的一般照片), 限制在MIN ~ MAX之間
+    private static int estimateEncodedSize(BufferedImage image) {
+        long estimate = (long) image.getWidth() * image.getHeight() / 4;
+        return (int) Math.max(MIN_ENCODE_BUFFER, Math.min(MAX_ENCODE_BUFFER, estimate));
     }
 }
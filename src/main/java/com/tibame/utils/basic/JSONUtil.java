@@ -1,5 +1,6 @@
 package com.tibame.utils.basic;
 
+import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
@@ -23,11 +24,21 @@ public class JSONUtil {
     private final static ObjectMapper objectMapper;
 
     static {
-        objectMapper = new ObjectMapper();
+        objectMapper = newObjectMapper(new JsonFactory());
+    }
+
+    /**
+     * 建立與JSONUtil相同設定的ObjectMapper (可指定其他格式, 例如二進位的Smile)
+     * @param factory 資料格式
+     * @return 設定完成的ObjectMapper
+     */
+    public static ObjectMapper newObjectMapper(JsonFactory factory) {
+        ObjectMapper mapper = new ObjectMapper(factory);
         SimpleModule module = new SimpleModule();
         module.addDeserializer(LocalDateTime.class, new LocalDateTimeDeserializer());
         module.addSerializer(LocalDateTime.class, new LocalDateTimeSerializer());
-        objectMapper.registerModule(module);
+        mapper.registerModule(module);
+        return mapper;
     }
 
     // 指定私有類別的序列化跟反序列化設定
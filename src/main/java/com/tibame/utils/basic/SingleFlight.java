@@ -0,0 +1,62 @@
+package com.tibame.utils.basic;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+// 同一個JVM內的請求合併 (single flight)
+// 同一個key同時有多個執行緒要重建時, 只有第一個執行緒真正執行, 其餘執行緒等待並共用同一個結果
+// 用在緩存重建前: 每個節點只會派出一個執行緒去競爭Redis的分散式鎖, 避免大量SETNX與休眠重試
+public class SingleFlight {
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> calls = new ConcurrentHashMap<>();
+
+    /**
+     * 執行loader, 同一時間相同key的呼叫只會執行一次
+     *
+     * @param key    合併請求的依據
+     * @param loader 實際取得資料的函式
+     * @param <R>    回傳值的類型
+     * @return loader的執行結果 (與同時進行的其他呼叫共用)
+     */
+    @SuppressWarnings("unchecked")
+    public <R> R execute(String key, Supplier<R> loader) {
+        CompletableFuture<Object> call = new CompletableFuture<>();
+        CompletableFuture<Object> inFlight = calls.putIfAbsent(key, call);
+        if (inFlight != null) {
+            // 已經有其他執行緒在處理, 等待它的結果
+            return (R) await(inFlight);
+        }
+
+        try {
+            R result = loader.get();
+            call.complete(result);
+            return result;
+        } catch (RuntimeException | Error e) {
+            call.completeExceptionally(e);
+            throw e;
+        } finally {
+            // 結束後移除, 之後的呼叫會重新執行loader (只合併同時發生的請求, 不作為緩存)
+            calls.remove(key, call);
+        }
+    }
+
+    /**
+     * 目前正在執行中的key數量
+     */
+    public int inFlightCount() {
+        return calls.size();
+    }
+
+    private Object await(CompletableFuture<Object> inFlight) {
+        try {
+            return inFlight.join();
+        } catch (CompletionException e) {
+            // 將執行者拋出的例外原樣拋給等待中的執行緒
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package com.tibame.utils.blob;
+
+import com.tibame.utils.basic.ImageUtil;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.regex.Pattern;
+
+@Slf4j
+@Component
+public class LocalDiskBlobStore {
+    // 以內容定址的本地磁碟儲存 (圖片資料從資料庫的LONGBLOB移出)
+    // 問題:
+    //      不緩存的圖片, 每次讀取都要從資料庫取出整個BLOB, 佔用連線池(10)的連線
+    // 做法:
+    //      檔名為資料的SHA-256, 相同內容只會存一份, 寫入後不再變更 (不需要處理更新的一致性)
+    //      引用次數記錄在image_blobs (ImageBlob), 由ImageService在引用歸零後刪除檔案
+    //      以hash的前4碼分成兩層資料夾 (ab/cd/abcd...), 避免單一資料夾的檔案過多
+    //      先寫入tmp資料夾再以ATOMIC_MOVE移到正式位置, 讀取時不會讀到寫到一半的檔案
+    //      讀取時以FileChannel.transferTo寫出, 不經過Java heap
+    //      上傳時可以邊寫入邊計算hash (put(BlobWriter)), 寫完才知道檔名, 所以一律先寫入tmp
+    // 注意:
+    //      多個節點時image.blob.dir需要是共用的儲存空間 (例如NFS), 找不到檔案時呼叫端會退回資料庫讀取
+
+    private static final Pattern HASH_PATTERN = Pattern.compile("[0-9a-f]{64}");
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private final Path root;
+    private final Path tmpDir;
+
+    public LocalDiskBlobStore(@Value("${image.blob.dir:${user.home}/perfecttrip/images}") String dir) throws IOException {
+        this.root = Paths.get(dir).toAbsolutePath();
+        this.tmpDir = root.resolve("tmp");
+        Files.createDirectories(tmpDir);
+        log.info("Image blob store at {}", root);
+    }
+
+    /**
+     * 檔案是否存在
+     *
+     * @param hash 資料的SHA-256
+     */
+    public boolean exists(String hash) {
+        return hash != null && Files.isRegularFile(pathOf(hash));
+    }
+
+    /**
+     * 寫入資料 (相同hash的檔案已經存在時不重複寫入)
+     *
+     * @param hash 資料的SHA-256
+     * @param data 資料
+     */
+    public void put(String hash, byte[] data) throws IOException {
+        Path target = pathOf(hash);
+        if (Files.isRegularFile(target)) {
+            return;
+        }
+        Files.createDirectories(target.getParent());
+        Path tmp = Files.createTempFile(tmpDir, hash, ".tmp");
+        try {
+            Files.write(tmp, data);
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * 以串流寫入資料, 寫入的同時計算hash (不需要先將整份資料載入記憶體)
+     *
+     * @param writer 將資料寫入串流的函式
+     * @return 寫入後的hash與大小 (相同hash的檔案已經存在時不重複寫入)
+     */
+    public StoredBlob put(BlobWriter writer) throws IOException {
+        MessageDigest digest = newDigest();
+        Path tmp = Files.createTempFile(tmpDir, "upload", ".tmp");
+        try {
+            try (OutputStream out = new DigestOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), WRITE_BUFFER_SIZE), digest)) {
+                writer.writeTo(out);
+            }
+            String hash = ImageUtil.toHex(digest.digest());
+            long size = Files.size(tmp);
+            Path target = pathOf(hash);
+            if (!Files.isRegularFile(target)) {
+                Files.createDirectories(target.getParent());
+                Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+            }
+            return new StoredBlob(hash, size);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * 取得檔案位置 (讓ImageIO等直接從檔案讀取)
+     *
+     * @param hash 資料的SHA-256
+     * @return 檔案位置, 檔案不存在時回傳null
+     */
+    public File locate(String hash) {
+        if (hash == null) {
+            return null;
+        }
+        Path path = pathOf(hash);
+        return Files.isRegularFile(path) ? path.toFile() : null;
+    }
+
+    /**
+     * 刪除檔案 (呼叫端需要先確認沒有任何引用)
+     *
+     * @param hash 資料的SHA-256
+     * @return 是否有刪除檔案
+     */
+    public boolean delete(String hash) throws IOException {
+        return Files.deleteIfExists(pathOf(hash));
+    }
+
+    /**
+     * 讀取完整的資料 (建立緩存時使用)
+     *
+     * @param hash 資料的SHA-256
+     * @return 資料, 檔案不存在時回傳null
+     */
+    public byte[] read(String hash) throws IOException {
+        if (hash == null) {
+            return null;
+        }
+        try {
+            return Files.readAllBytes(pathOf(hash));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 將資料的指定範圍寫入串流 (以FileChannel.transferTo寫出, 不載入記憶體)
+     *
+     * @param hash   資料的SHA-256
+     * @param offset 開始位置
+     * @param length 寫入的長度
+     * @param out    輸出的串流
+     */
+    public void transferTo(String hash, long offset, long length, OutputStream out) throws IOException {
+        WritableByteChannel target = Channels.newChannel(out);
+        try (FileChannel channel = FileChannel.open(pathOf(hash), StandardOpenOption.READ)) {
+            long position = offset;
+            long end = offset + length;
+            while (position < end) {
+                long transferred = channel.transferTo(position, end - position, target);
+                if (transferred <= 0) {
+                    // 檔案比預期的短
+                    throw new IOException("Blob " + hash + " ended at " + position + ", expected " + end);
+                }
+                position += transferred;
+            }
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Path pathOf(String hash) {
+        // hash會組成路徑, 只接受SHA-256的hex字串
+        if (hash == null || !HASH_PATTERN.matcher(hash).matches()) {
+            throw new IllegalArgumentException("Invalid blob hash: " + hash);
+        }
+        return root.resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4)).resolve(hash);
+    }
+
+    @FunctionalInterface
+    public interface BlobWriter {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    @Getter
+    @RequiredArgsConstructor
+    public static class StoredBlob {
+        private final String hash;
+        private final long size;
+    }
+}
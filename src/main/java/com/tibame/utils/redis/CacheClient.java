@@ -1,37 +1,94 @@
 package com.tibame.utils.redis;
 
-import com.tibame.utils.basic.JSONUtil;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.tibame.utils.basic.SingleFlight;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.support.TransactionTemplate;
 
-import javax.annotation.PreDestroy;
-import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
 
 
 @Slf4j
 @Component
 public class CacheClient {
-    private static final Long LOCK_TTL = 10L;
-    private static final Long RETRY_INTERVAL = 50L;
-    private static final Long MAX_RETRY_COUNT = LOCK_TTL * 1000 / RETRY_INTERVAL;
-    private final StringRedisTemplate stringRedisTemplate;
+    private static final Long LOCK_WAIT = 10L; // 等待互斥鎖的上限(秒)
+    // 資料庫中沒有這筆資料時存入的空值
+    private static final byte[] NULL_VALUE = new byte[0];
+    // 與圖片緩存共用byte[]序列化的RedisTemplate, 資料格式由CacheCodec決定
+    private final RedisTemplate<String, byte[]> redisTemplateForBytes;
+    private final CacheCodec cacheCodec;
     private final TransactionTemplate transactionTemplate;
+    private final NearCache nearCache;
+    private final CacheInvalidationBus invalidationBus;
+    private final RedisLock redisLock;
+    private final CacheRebuildScheduler rebuildScheduler;
+    private final RefreshAheadScheduler refreshAheadScheduler;
 
+    // Redis(L2)的命中統計 (L1的統計由NearCache提供)
+    private final LongAdder redisHits = new LongAdder();
+    private final LongAdder redisMisses = new LongAdder();
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate, TransactionTemplate transactionTemplate) {
-        this.stringRedisTemplate = stringRedisTemplate;
+    // 緩存重建時, 同一個節點內只讓一個執行緒去競爭分散式鎖
+    private final SingleFlight singleFlight = new SingleFlight();
+
+
+    public CacheClient(RedisTemplate<String, byte[]> redisTemplateForBytes, CacheCodec cacheCodec, TransactionTemplate transactionTemplate, NearCache nearCache, CacheInvalidationBus invalidationBus, RedisLock redisLock, CacheRebuildScheduler rebuildScheduler, RefreshAheadScheduler refreshAheadScheduler) {
+        this.redisTemplateForBytes = redisTemplateForBytes;
+        this.cacheCodec = cacheCodec;
         this.transactionTemplate = transactionTemplate;
+        this.nearCache = nearCache;
+        this.invalidationBus = invalidationBus;
+        this.redisLock = redisLock;
+        this.rebuildScheduler = rebuildScheduler;
+        this.refreshAheadScheduler = refreshAheadScheduler;
+    }
+
+    /**
+     * 同時移除本地緩存(L1)與Redis(L2)中的資料, 並通知其他節點移除本地緩存
+     *
+     * @param key 物件的key
+     */
+    public void delete(String key) {
+        nearCache.invalidate(key);
+        redisTemplateForBytes.delete(key);
+        invalidationBus.publish(key);
+    }
+
+    /**
+     * 取得各層緩存的命中統計
+     *
+     * @return 統計資料
+     */
+    public Map<String, Long> getStats() {
+        CacheStats localStats = nearCache.stats();
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("localHits", localStats.hitCount());
+        stats.put("localMisses", localStats.missCount());
+        stats.put("localEvictions", localStats.evictionCount());
+        stats.put("localSize", nearCache.estimatedSize());
+        stats.put("redisHits", redisHits.sum());
+        stats.put("redisMisses", redisMisses.sum());
+        stats.put("rebuildsInFlight", (long) singleFlight.inFlightCount());
+        return stats;
     }
 
     /**
      * 將數據存到Redis資料庫中 並設立一般過期時間
-     * 後續可以在過期時間上增加一定範圍的隨機數, 避免大量數據同時過期造成緩存雪崩
+     * 大量寫入的資料請使用TtlPolicy的版本, 在過期時間上增加隨機數, 避免大量數據同時過期造成緩存雪崩
      *
      * @param key   物件的key
      * @param value 物件的value
@@ -39,12 +96,46 @@ public class CacheClient {
      * @param unit  時間單位
      */
     public void set(String key, Object value, Long time, TimeUnit unit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        redisTemplateForBytes.opsForValue().set(key, cacheCodec.encode(value, CacheCodec.NO_LOGIC_EXPIRE), time, unit);
+    }
+
+    /**
+     * 將數據存到Redis資料庫中 並依照TtlPolicy設立過期時間 (加入隨機偏移, 防止緩存雪崩)
+     *
+     * @param key   物件的key
+     * @param value 物件的value
+     * @param ttl   過期時間策略
+     */
+    public void set(String key, Object value, TtlPolicy ttl) {
+        set(key, value, ttl.nextMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 存入資料庫中沒有這筆資料的空值 (防止緩存穿透)
+     *
+     * @param key  物件的key
+     * @param time 過期時間
+     * @param unit 時間單位
+     */
+    public void setNull(String key, Long time, TimeUnit unit) {
+        redisTemplateForBytes.opsForValue().set(key, NULL_VALUE, time, unit);
+    }
+
+    /**
+     * 存入空值, 並同步更新本地緩存 (Redis與本地使用同一個抽樣的過期時間)
+     *
+     * @param key       物件的key
+     * @param statusTTL 空值的過期時間策略
+     */
+    public void setNull(String key, TtlPolicy statusTTL) {
+        long ttl = statusTTL.nextMillis();
+        setNull(key, ttl, TimeUnit.MILLISECONDS);
+        nearCache.putNull(key, ttl, TimeUnit.MILLISECONDS);
     }
 
     /**
      * 將數據存到Redis資料庫中 並設立邏輯過期時間
-     * 此筆資料不會在Redis中過期消失, 主要使用RedisData二次封裝物件設立過期時間
+     * 此筆資料不會在Redis中過期消失, 邏輯過期時間寫在資料開頭的header (見CacheCodec)
      * 後續依靠Redis的記憶體淘汰機制或是手動移除
      *
      * @param key   物件的key
@@ -53,17 +144,58 @@ public class CacheClient {
      * @param unit  時間單位
      */
     public void setWithLogicExpire(String key, Object value, Long time, TimeUnit unit) {
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        long expireMillis = System.currentTimeMillis() + unit.toMillis(time);
+        redisTemplateForBytes.opsForValue().set(key, cacheCodec.encode(value, expireMillis));
     }
 
     public void setWithLogicAndNaturalExpire(String key, Object value, Long dataTTL, Long naturalTTL, TimeUnit unit) {
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(dataTTL)));
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData), naturalTTL, unit);
+        long expireMillis = System.currentTimeMillis() + unit.toMillis(dataTTL);
+        byte[] bytes = cacheCodec.encode(value, expireMillis);
+        redisTemplateForBytes.opsForValue().set(key, bytes, naturalTTL, unit);
+        // 同步更新本地緩存
+        nearCache.put(key, value, expireMillis, System.currentTimeMillis() + unit.toMillis(naturalTTL), bytes.length);
+    }
+
+    /**
+     * 依照TtlPolicy設立邏輯過期與自然淘汰時間 (兩者各自抽樣, 自然淘汰時間不會早於邏輯過期時間)
+     *
+     * @param key        物件的key
+     * @param value      物件的value
+     * @param dataTTL    邏輯過期時間策略
+     * @param naturalTTL 自然淘汰時間策略
+     */
+    public void setWithLogicAndNaturalExpire(String key, Object value, TtlPolicy dataTTL, TtlPolicy naturalTTL) {
+        long dataMillis = dataTTL.nextMillis();
+        long naturalMillis = Math.max(naturalTTL.nextMillis(), dataMillis);
+        setWithLogicAndNaturalExpire(key, value, dataMillis, naturalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 從Redis讀取資料, 無法解碼的舊格式資料視為不存在 (之後重建時會被覆蓋)
+     */
+    private byte[] get(String key) {
+        byte[] bytes = redisTemplateForBytes.opsForValue().get(key);
+        if (bytes != null && bytes.length > 0 && !cacheCodec.canDecode(bytes)) {
+            log.debug("Ignore cache value with unknown format: {}", key);
+            return null;
+        }
+        return bytes;
+    }
+
+    /**
+     * 只讀取資料開頭的header (GETRANGE), 不傳輸資料本體
+     *
+     * @return header, 資料不存在或格式不符時回傳null
+     */
+    private byte[] getHeader(String key) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        byte[] header = redisTemplateForBytes.execute(
+                (RedisCallback<byte[]>) connection -> connection.stringCommands().getRange(rawKey, 0, cacheCodec.headerSize() - 1)
+        );
+        if (header == null || !cacheCodec.canDecode(header)) {
+            return null;
+        }
+        return header;
     }
 
 
@@ -75,9 +207,8 @@ public class CacheClient {
      * @param id         物件id
      * @param type       物件類型
      * @param dataTTL    資料的過期時間
-     * @param statusTTL  狀態的過期時間
+     * @param statusTTL  狀態(空值)的過期時間
      * @param naturalTTL 緩存自然淘汰消失的時間
-     * @param unit       時間單位
      * @param dbFallback 當Redis查詢失敗後, 搜尋SQL的函式
      * @param <R>        回傳值的類型 (根據傳入的class決定)
      * @param <ID>       id的類型 (根據傳入的id決定)
@@ -88,81 +219,350 @@ public class CacheClient {
             String lockPrefix,
             ID id,
             Class<R> type,
-            Long dataTTL,
-            Long statusTTL,
-            Long naturalTTL,
-            TimeUnit unit,
+            TtlPolicy dataTTL,
+            TtlPolicy statusTTL,
+            TtlPolicy naturalTTL,
             Function<ID, R> dbFallback
     ) {
         String key = keyPrefix + id;
         String lockKey = lockPrefix + id;
 
-        // 從Redis中查詢緩存
-        String json = stringRedisTemplate.opsForValue().get(key);
-        while (true) {
-            if (json != null && json.trim().isEmpty()) {
-                // 查到的東西是"", 表示目前SQL中沒有這筆資料
-                return null;
-            } else if (json == null) {
-                // Redis中找不到資料, 開始建立緩存 (互斥鎖方案)
-                if (!acquireLock(lockKey)) {
-                    // 超出重試上限, 還是沒有獲得鎖 (在目前設定下, 代表空轉了10秒)
-                    throw new RuntimeException("Unable to acquire lock after " + MAX_RETRY_COUNT + " retries");
+        // 先查詢本地緩存
+        NearCache.Entry local = nearCache.getIfPresent(key);
+        if (local != null) {
+            if (!local.isExpired()) {
+                if (local.getValue() != null) {
+                    recordAccess(key, lockKey, id, local.getExpireMillis(), dataTTL, statusTTL, naturalTTL, dbFallback);
                 }
+                return type.cast(local.getValue());
+            }
 
-                // 獲取鎖成功
-                try {
-                    // 重新確認資料是否已經重建完成
-                    json = stringRedisTemplate.opsForValue().get(key);
-                    if (json != null) {
-                        // 確認資料已經重建, 重新進行一次分支判定
-                        continue;
-                    }
+            // 本地資料已邏輯過期: 只讀取Redis的header, 判斷是否已經被重建 (不傳輸也不解碼資料本體)
+            byte[] header = getHeader(key);
+            if (header != null && cacheCodec.readExpireMillis(header) <= local.getExpireMillis()) {
+                // Redis中還是同一個版本: 安排重建後直接回傳本地的舊資料
+                redisHits.increment();
+                recordAccess(key, lockKey, id, local.getExpireMillis(), dataTTL, statusTTL, naturalTTL, dbFallback);
+                // 本地緩存中存在的key視為熱門資料, 優先重建
+                scheduleRebuild(key, lockKey, id, dataTTL, statusTTL, naturalTTL, CacheRebuildScheduler.PRIORITY_HOT, dbFallback);
+                return type.cast(local.getValue());
+            }
+            // Redis中已經有新版本 (或資料已不存在), 走下方的完整流程
+        }
 
-                    // 確認資料尚未重建, 開始查詢資料庫並建立緩存
-                    R r = dbFallback.apply(id);
-                    if (r == null) {
-                        // 資料庫沒有這筆資料, 將空字串存入緩存
-                        set(key, "", statusTTL, unit);
-                    } else {
-                        // 將數據存入Redis, 並設立邏輯過期 以及 自然淘汰時間
-                        setWithLogicAndNaturalExpire(key, r, dataTTL, naturalTTL, unit);
-                    }
-                    return r;
-                } finally {
-                    unlock(lockKey);
+        // 從Redis中查詢緩存
+        byte[] bytes = get(key);
+        if (bytes == null) {
+            redisMisses.increment();
+        } else {
+            redisHits.increment();
+        }
+        if (bytes != null && bytes.length == 0) {
+            // 查到的是空值, 表示目前SQL中沒有這筆資料
+            nearCache.putNull(key, statusTTL.nextMillis(), TimeUnit.MILLISECONDS);
+            return null;
+        } else if (bytes == null) {
+            // Redis中找不到資料, 開始建立緩存 (互斥鎖方案)
+            // 同一個節點內只派出一個執行緒競爭鎖並重建, 其餘執行緒直接等待同一個結果
+            return singleFlight.execute(key, () -> rebuildWithMutex(key, lockKey, id, type, dataTTL, statusTTL, naturalTTL, dbFallback));
+        } else {
+            // Redis中存在這筆資料, 開始判斷檔案是否過期 (邏輯過期方案)
+            long expireMillis = cacheCodec.readExpireMillis(bytes);
+            boolean expired = expireMillis < System.currentTimeMillis();
+            recordAccess(key, lockKey, id, expireMillis, dataTTL, statusTTL, naturalTTL, dbFallback);
+
+            if (expired) {
+                // 確認資料已過期: 嘗試上鎖更新資料
+                scheduleRebuild(key, lockKey, id, dataTTL, statusTTL, naturalTTL, CacheRebuildScheduler.PRIORITY_NORMAL, dbFallback);
+            }
+
+            // 確定要回傳時才解碼資料本體, 直接解碼成指定型態
+            R r = cacheCodec.decode(bytes, type);
+            // 過期的資料也放入本地緩存, 重建完成前的請求只需要讀取header
+            nearCache.put(key, r, expireMillis, System.currentTimeMillis() + naturalTTL.nextMillis(), bytes.length);
+            return r;
+        }
+    }
+
+    /**
+     * 批次查詢, 與queryWithMutexAndLogicExpire使用相同的緩存格式 (空值, 邏輯過期, 本地緩存)
+     * 本地緩存沒有的key以一次MGET讀取, Redis也沒有的資料以一次dbFallback查詢, 再以一次pipeline寫回
+     * 注意: 批次重建不使用互斥鎖 (每個key各自上鎖會抵銷批次的效果), 單筆查詢的路徑仍然有互斥鎖保護
+     *
+     * @param keyPrefix  key的前綴 (與id組成完整的物件key)
+     * @param lockPrefix lock的前綴 (邏輯過期後重建時使用)
+     * @param ids        物件id (重複的id只會查詢一次)
+     * @param type       物件類型
+     * @param dataTTL    資料的過期時間
+     * @param statusTTL  狀態(空值)的過期時間
+     * @param naturalTTL 緩存自然淘汰消失的時間
+     * @param idGetter   從物件取得id的函式 (用來對應dbFallback的查詢結果)
+     * @param dbFallback 批次搜尋SQL的函式 (例如 WHERE id IN (...))
+     * @param <R>        回傳值的類型 (根據傳入的class決定)
+     * @param <ID>       id的類型 (根據傳入的id決定)
+     * @return id -> 查詢結果 (依照傳入的順序, 不包含查詢不到的資料)
+     */
+    public <R, ID> Map<ID, R> queryMany(
+            String keyPrefix,
+            String lockPrefix,
+            Collection<ID> ids,
+            Class<R> type,
+            TtlPolicy dataTTL,
+            TtlPolicy statusTTL,
+            TtlPolicy naturalTTL,
+            Function<R, ID> idGetter,
+            Function<Collection<ID>, List<R>> dbFallback
+    ) {
+        Map<ID, R> results = new LinkedHashMap<>();
+        if (ids == null || ids.isEmpty()) {
+            return results;
+        }
+
+        // 背景重建使用的單筆查詢只建立一次 (每個id共用)
+        Function<ID, R> singleFallback = dbFallbackOf(dbFallback);
+
+        // 先查詢本地緩存 (過期的資料交給下方的MGET重新確認)
+        List<ID> remoteIds = new ArrayList<>();
+        for (ID id : new LinkedHashSet<>(ids)) {
+            String key = keyPrefix + id;
+            NearCache.Entry local = nearCache.getIfPresent(key);
+            if (local != null && !local.isExpired()) {
+                if (local.getValue() != null) {
+                    recordAccess(key, lockPrefix + id, id, local.getExpireMillis(), dataTTL, statusTTL, naturalTTL, singleFallback);
+                    results.put(id, type.cast(local.getValue()));
                 }
+                continue;
+            }
+            remoteIds.add(id);
+        }
+        if (remoteIds.isEmpty()) {
+            return results;
+        }
+
+        // 一次MGET讀取所有本地緩存沒有的key
+        List<String> keys = new ArrayList<>(remoteIds.size());
+        for (ID id : remoteIds) {
+            keys.add(keyPrefix + id);
+        }
+        List<byte[]> values = redisTemplateForBytes.opsForValue().multiGet(keys);
+
+        List<ID> missIds = new ArrayList<>();
+        for (int i = 0; i < remoteIds.size(); i++) {
+            ID id = remoteIds.get(i);
+            String key = keys.get(i);
+            byte[] bytes = values == null ? null : values.get(i);
+            if (bytes != null && bytes.length > 0 && !cacheCodec.canDecode(bytes)) {
+                // 無法解碼的舊格式資料視為不存在
+                bytes = null;
+            }
+
+            if (bytes == null) {
+                redisMisses.increment();
+                missIds.add(id);
+                continue;
+            }
+            redisHits.increment();
+            if (bytes.length == 0) {
+                // 查到的是空值, 表示目前SQL中沒有這筆資料
+                nearCache.putNull(key, statusTTL.nextMillis(), TimeUnit.MILLISECONDS);
+                continue;
+            }
+
+            // 與單筆查詢相同: 過期的資料先回傳, 並安排重建
+            long expireMillis = cacheCodec.readExpireMillis(bytes);
+            recordAccess(key, lockPrefix + id, id, expireMillis, dataTTL, statusTTL, naturalTTL, singleFallback);
+            if (expireMillis < System.currentTimeMillis()) {
+                scheduleRebuild(key, lockPrefix + id, id, dataTTL, statusTTL, naturalTTL, CacheRebuildScheduler.PRIORITY_NORMAL, singleFallback);
+            }
+            R r = cacheCodec.decode(bytes, type);
+            nearCache.put(key, r, expireMillis, System.currentTimeMillis() + naturalTTL.nextMillis(), bytes.length);
+            results.put(id, r);
+        }
+        if (missIds.isEmpty()) {
+            return reorder(ids, results);
+        }
+
+        // 一次查詢資料庫取得所有緩存不存在的資料
+        Map<ID, R> loaded = new HashMap<>();
+        List<R> rows = dbFallback.apply(missIds);
+        if (rows != null) {
+            for (R row : rows) {
+                loaded.put(idGetter.apply(row), row);
+            }
+        }
+
+        // 以一次pipeline寫回Redis (資料庫沒有的資料寫入空值)
+        List<byte[]> rawKeys = new ArrayList<>(missIds.size());
+        List<byte[]> rawValues = new ArrayList<>(missIds.size());
+        List<Long> ttlMillis = new ArrayList<>(missIds.size());
+        long now = System.currentTimeMillis();
+        for (ID id : missIds) {
+            String key = keyPrefix + id;
+            R r = loaded.get(id);
+            rawKeys.add(key.getBytes(StandardCharsets.UTF_8));
+            if (r == null) {
+                long ttl = statusTTL.nextMillis();
+                rawValues.add(NULL_VALUE);
+                ttlMillis.add(ttl);
+                nearCache.putNull(key, ttl, TimeUnit.MILLISECONDS);
             } else {
-                // Redis中存在這筆資料, 開始判斷檔案是否過期 (邏輯過期方案)
-                RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-
-                if (redisData.getExpireTime().isBefore(LocalDateTime.now())) {
-                    // 確認資料已過期: 嘗試上鎖更新資料
-                    if (tryLock(lockKey)) {
-                        // 成功上鎖  開啟一個新執行緒更新資料
-                        CACHE_REBUILD_EXECUTOR.submit(() -> {
-                            try {
-                                // 查詢資料庫
-                                R r = transactionTemplate.execute(status -> dbFallback.apply(id));
-                                if (r == null) {
-                                    // 資料庫中這筆檔案消失了(可能被刪除), 改存入空字串
-                                    set(key, "", statusTTL, unit);
-                                } else {
-                                    // 將資料寫入Redis
-                                    setWithLogicAndNaturalExpire(key, r, dataTTL, naturalTTL, unit);
-                                }
-                            } catch (Exception e) {
-                                throw new RuntimeException(e);
-                            } finally {
-                                unlock(lockKey);
-                            }
-                        });
-                    }
+                long dataMillis = dataTTL.nextMillis();
+                long naturalMillis = Math.max(naturalTTL.nextMillis(), dataMillis);
+                byte[] bytes = cacheCodec.encode(r, now + dataMillis);
+                rawValues.add(bytes);
+                ttlMillis.add(naturalMillis);
+                nearCache.put(key, r, now + dataMillis, now + naturalMillis, bytes.length);
+                results.put(id, r);
+            }
+        }
+        redisTemplateForBytes.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < rawKeys.size(); i++) {
+                connection.stringCommands().pSetEx(rawKeys.get(i), ttlMillis.get(i), rawValues.get(i));
+            }
+            return null;
+        });
+
+        return reorder(ids, results);
+    }
+
+    /**
+     * 依照傳入的id順序排列查詢結果
+     */
+    private static <R, ID> Map<ID, R> reorder(Collection<ID> ids, Map<ID, R> results) {
+        Map<ID, R> ordered = new LinkedHashMap<>();
+        for (ID id : ids) {
+            R r = results.get(id);
+            if (r != null) {
+                ordered.put(id, r);
+            }
+        }
+        return ordered;
+    }
+
+    /**
+     * 將批次查詢的dbFallback轉換成單筆查詢 (邏輯過期後的背景重建使用)
+     */
+    private static <R, ID> Function<ID, R> dbFallbackOf(Function<Collection<ID>, List<R>> dbFallback) {
+        return id -> {
+            List<R> rows = dbFallback.apply(Collections.singletonList(id));
+            return rows == null || rows.isEmpty() ? null : rows.get(0);
+        };
+    }
+
+    /**
+     * 資料邏輯過期時, 嘗試上鎖並交給重建排程執行 (沒搶到鎖表示已經有人在重建)
+     */
+    private <R, ID> void scheduleRebuild(
+            String key,
+            String lockKey,
+            ID id,
+            TtlPolicy dataTTL,
+            TtlPolicy statusTTL,
+            TtlPolicy naturalTTL,
+            int priority,
+            Function<ID, R> dbFallback
+    ) {
+        if (rebuildScheduler.isPending(key)) {
+            // 這個節點已經在排隊重建, 不需要再競爭鎖
+            return;
+        }
+        String token = redisLock.tryLock(lockKey);
+        if (token == null) {
+            return;
+        }
+
+        // 成功上鎖  交給重建排程更新資料 (例外由排程記錄)
+        boolean accepted = rebuildScheduler.submit(key, priority, () -> {
+            try {
+                // 查詢資料庫
+                R r = transactionTemplate.execute(status -> dbFallback.apply(id));
+                if (r == null) {
+                    // 資料庫中這筆檔案消失了(可能被刪除), 改存入空值
+                    setNull(key, statusTTL);
+                } else {
+                    // 將資料寫入Redis
+                    setWithLogicAndNaturalExpire(key, r, dataTTL, naturalTTL);
                 }
+            } finally {
+                redisLock.unlock(lockKey, token);
+            }
+        });
+        if (!accepted) {
+            // 排程拒絕 (佇列已滿): 釋放鎖, 讓之後的請求再次嘗試
+            redisLock.unlock(lockKey, token);
+        }
+    }
+
+    /**
+     * 記錄讀取頻率, 第一次讀取時註冊提前刷新的方式 (只有第一次需要建立lambda)
+     */
+    private <R, ID> void recordAccess(
+            String key,
+            String lockKey,
+            ID id,
+            long expireMillis,
+            TtlPolicy dataTTL,
+            TtlPolicy statusTTL,
+            TtlPolicy naturalTTL,
+            Function<ID, R> dbFallback
+    ) {
+        if (!refreshAheadScheduler.recordAccess(key, expireMillis)) {
+            refreshAheadScheduler.track(key, expireMillis, knownExpireMillis -> {
+                // 先確認Redis中的版本, 其他節點已經刷新過時不需要再重建
+                byte[] header = getHeader(key);
+                if (header == null) {
+                    return -1L;
+                }
+                long redisExpireMillis = cacheCodec.readExpireMillis(header);
+                if (redisExpireMillis <= knownExpireMillis) {
+                    scheduleRebuild(key, lockKey, id, dataTTL, statusTTL, naturalTTL, CacheRebuildScheduler.PRIORITY_HOT, dbFallback);
+                }
+                return redisExpireMillis;
+            });
+        }
+    }
+
+    /**
+     * 緩存不存在時, 取得互斥鎖後查詢資料庫並重建緩存 (邏輯過期方案使用)
+     * 由single flight呼叫, 同一個節點同時只會有一個執行緒進入
+     */
+    private <R, ID> R rebuildWithMutex(
+            String key,
+            String lockKey,
+            ID id,
+            Class<R> type,
+            TtlPolicy dataTTL,
+            TtlPolicy statusTTL,
+            TtlPolicy naturalTTL,
+            Function<ID, R> dbFallback
+    ) {
+        // 等待解鎖通知取得鎖 (不再固定間隔輪詢)
+        String token = redisLock.lock(lockKey, LOCK_WAIT, TimeUnit.SECONDS);
+        if (token == null) {
+            // 超出等待上限, 還是沒有獲得鎖
+            throw new RuntimeException("Unable to acquire lock " + lockKey + " within " + LOCK_WAIT + " seconds");
+        }
+
+        // 獲取鎖成功
+        try {
+            // 重新確認資料是否已經重建完成 (可能是其他節點重建的)
+            byte[] bytes = get(key);
+            if (bytes != null) {
+                return bytes.length == 0 ? null : cacheCodec.decode(bytes, type);
+            }
 
-                Object data = redisData.getData();
-                return JSONUtil.toBean(data, type);
+            // 確認資料尚未重建, 開始查詢資料庫並建立緩存
+            R r = dbFallback.apply(id);
+            if (r == null) {
+                // 資料庫沒有這筆資料, 將空值存入緩存
+                setNull(key, statusTTL);
+            } else {
+                // 將數據存入Redis, 並設立邏輯過期 以及 自然淘汰時間
+                setWithLogicAndNaturalExpire(key, r, dataTTL, naturalTTL);
             }
+            return r;
+        } finally {
+            redisLock.unlock(lockKey, token);
         }
     }
 
@@ -173,90 +573,57 @@ public class CacheClient {
      * @param lockPrefix lock的前綴 (與id組成完整鎖key)
      * @param id         物件id
      * @param type       物件類型
-     * @param time       時間
-     * @param unit       時間單位
+     * @param ttl        過期時間 (資料與空值共用)
      * @param dbFallback 當Redis查詢失敗後, 搜尋SQL的函式
      * @param <R>        回傳值的類型 (根據傳入的class決定)
      * @param <ID>       id的類型 (根據傳入的id決定)
      * @return 查詢結果
      */
-    public <R, ID> R queryWithMutex(String keyPrefix, String lockPrefix, ID id, Class<R> type, Long time, TimeUnit unit, Function<ID, R> dbFallback) {
+    public <R, ID> R queryWithMutex(String keyPrefix, String lockPrefix, ID id, Class<R> type, TtlPolicy ttl, Function<ID, R> dbFallback) {
         String key = keyPrefix + id;
-        String lockKey = lockPrefix + id;
-        try {
-            while (true) {
-                // 從Redis查詢緩存
-                String json = stringRedisTemplate.opsForValue().get(key);
-                if (json != null && !json.trim().isEmpty()) {
-                    // 資料存在於Redis中, 將結果直接返回
-                    return JSONUtil.toBean(json, type);
-                } else if ("".equals(json)) {
-                    // 查到的東西是"", 表示目前SQL中沒有這筆資料
-                    return null;
-                }
+        // 從Redis查詢緩存 (命中時直接返回, 不需要進入single flight)
+        byte[] bytes = get(key);
+        if (bytes != null) {
+            return bytes.length == 0 ? null : cacheCodec.decode(bytes, type);
+        }
 
-                // 緩存重建: 獲取互斥鎖
-                if (!tryLock(lockKey)) {
-                    // 鎖定失敗: 休眠一段時間重試
-                    Thread.sleep(50);
-                    // 原本是使用遞迴  但覺得會可能造成棧溢出  改成while自旋 (感覺後面還可以增加重試上限避免死鎖)
-                } else {
-                    // 成功獲取互斥鎖: 二次確認是否有其他人已經重建完緩存
-                    // 如果有其他人已經重建緩存 回傳重建後緩存並解鎖 (兩段幾乎一樣的程式碼看起來好煩躁)
-                    json = stringRedisTemplate.opsForValue().get(key);
-                    if (json != null && !json.trim().isEmpty()) {
-                        // 資料存在於Redis中  將結果直接返回
-                        unlock(lockKey);  // 手動釋放鎖 (沒解10秒後鎖也會自動失效, 但還是要記得解鎖)
-                        return JSONUtil.toBean(json, type);
-                    } else if ("".equals(json)) {
-                        // 查到的東西是"", 表示目前SQL中沒有這筆資料
-                        unlock(lockKey);  // 手動釋放鎖 (沒解10秒後鎖也會自動失效, 但還是要記得解鎖)
-                        return null;
-                    }
-                    break;
-                }
-            }
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+        // 緩存不存在: 同一個節點內只派出一個執行緒去競爭互斥鎖, 其餘執行緒等待同一個結果
+        return singleFlight.execute(key, () -> rebuildWithMutex(key, lockPrefix + id, id, type, ttl, dbFallback));
+    }
+
+    private <R, ID> R rebuildWithMutex(String key, String lockKey, ID id, Class<R> type, TtlPolicy ttl, Function<ID, R> dbFallback) {
+        // 緩存重建: 獲取互斥鎖 (等待解鎖通知, 取代原本固定休眠50ms的自旋)
+        String token = redisLock.lock(lockKey, LOCK_WAIT, TimeUnit.SECONDS);
+        if (token == null) {
+            throw new RuntimeException("Unable to acquire lock " + lockKey + " within " + LOCK_WAIT + " seconds");
         }
 
         try {
+            // 成功獲取互斥鎖: 二次確認是否有其他人已經重建完緩存
+            byte[] bytes = get(key);
+            if (bytes != null && bytes.length > 0) {
+                // 資料存在於Redis中  將結果直接返回
+                return cacheCodec.decode(bytes, type);
+            } else if (bytes != null) {
+                // 查到的是空值, 表示目前SQL中沒有這筆資料
+                return null;
+            }
+
             // 鎖獲取成功 且二次確認數據不存在
             // 執行緩存重建: 去SQL查詢 並寫入Redis
             R r = dbFallback.apply(id);
             if (r == null) {
                 // 資料庫中不存在這筆資料 將空值寫入Redis 返回null
-                this.set(key, "", time, unit);
+                this.setNull(key, ttl.nextMillis(), TimeUnit.MILLISECONDS);
                 return null;
             }
             // 寫入Redis
-            this.set(key, r, time, unit);
+            this.set(key, r, ttl);
             // 返回查詢結果
             return r;
         } finally {
-            // 釋放互斥鎖 (這裡才可以用finally釋放鎖)
-            // 上方用finally釋放的話, 會變成一獲得鎖就直接釋放
-            unlock(lockKey);
-        }
-    }
-
-    // 邏輯過期方案使用的執行緒池
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
-
-    @PreDestroy
-    public void shutdownExecutorService() {
-        // 在關閉前, 先結束所有的執行緒工作 (避免jdbc連線未中止的錯誤)
-        CACHE_REBUILD_EXECUTOR.shutdown();
-        try {
-            if (!CACHE_REBUILD_EXECUTOR.awaitTermination(60, TimeUnit.SECONDS)) {
-                CACHE_REBUILD_EXECUTOR.shutdownNow();
-                if (!CACHE_REBUILD_EXECUTOR.awaitTermination(60, TimeUnit.SECONDS)) {
-                    System.err.println("ExecutorService did not terminate");
-                }
-            }
-        } catch (InterruptedException ie) {
-            CACHE_REBUILD_EXECUTOR.shutdownNow();
-            Thread.currentThread().interrupt();
+            // 釋放互斥鎖 (只會刪除自己持有的鎖)
+            redisLock.unlock(lockKey, token);
         }
     }
 
@@ -268,69 +635,44 @@ public class CacheClient {
      * @param lockPrefix lock的前綴 (與id組成完整鎖key)
      * @param id         物件id
      * @param type       物件類型
-     * @param time       時間
-     * @param unit       時間單位
+     * @param ttl        邏輯過期時間
      * @param dbFallback 當Redis查詢失敗後, 搜尋SQL的函式
      * @param <R>        回傳值的類型 (根據傳入的class決定)
      * @param <ID>       id的類型 (根據傳入的id決定)
      * @return 查詢結果
      */
-    public <R, ID> R queryWithLogicExpire(String keyPrefix, String lockPrefix, ID id, Class<R> type, Long time, TimeUnit unit, Function<ID, R> dbFallback) {
+    public <R, ID> R queryWithLogicExpire(String keyPrefix, String lockPrefix, ID id, Class<R> type, TtlPolicy ttl, Function<ID, R> dbFallback) {
         String key = keyPrefix + id;
         // 從Redis查詢緩存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = get(key);
         // 不存在預先存入的資料(表示非活動商店) 直接返回null
-        if (json == null || json.trim().isEmpty()) {
+        if (bytes == null || bytes.length == 0) {
             return null;
         }
 
-        // 存在 : 判斷是否已經過期
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-
-        if (redisData.getExpireTime().isBefore(LocalDateTime.now())) {
+        // 存在 : 判斷是否已經過期 (只讀取header, 不需要解碼資料本體)
+        if (cacheCodec.readExpireMillis(bytes) < System.currentTimeMillis()) {
             // 資料已過期: 嘗試上鎖更新資料
             String lockKey = lockPrefix + id;
-            if (tryLock(lockKey)) {
-                // 成功上鎖  開啟一個新執行緒更新資料
-                CACHE_REBUILD_EXECUTOR.submit(() -> {
+            String token = rebuildScheduler.isPending(key) ? null : redisLock.tryLock(lockKey);
+            if (token != null) {
+                // 成功上鎖  交給重建排程更新資料
+                boolean accepted = rebuildScheduler.submit(key, CacheRebuildScheduler.PRIORITY_NORMAL, () -> {
                     try {
                         // 查詢資料庫
                         R r = transactionTemplate.execute(status -> dbFallback.apply(id));
                         // 寫入Redis
-                        this.setWithLogicExpire(key, r, time, unit);
-                    } catch (Exception e) {
-                        throw new RuntimeException(e);
+                        this.setWithLogicExpire(key, r, ttl.nextMillis(), TimeUnit.MILLISECONDS);
                     } finally {
-                        unlock(lockKey);
+                        redisLock.unlock(lockKey, token);
                     }
                 });
+                if (!accepted) {
+                    redisLock.unlock(lockKey, token);
+                }
             }
         }
         // 返回數據 (雖然可能是過期資料 但實務上不會是過期很久的資料)
-        // 由於是二次封裝的類型 無法直接取得R物件 需進行二次轉換
-        Object data = redisData.getData();
-        return JSONUtil.toBean(data, type);
-    }
-
-    private boolean tryLock(String key) {
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "lock", LOCK_TTL, TimeUnit.SECONDS);
-        return flag != null && flag;
-    }
-
-    private void unlock(String key) {
-        stringRedisTemplate.delete(key);
-    }
-
-    private boolean acquireLock(String lockKey) {
-        for (int i = 0; i < MAX_RETRY_COUNT; i++) {
-            if (tryLock(lockKey)) return true;
-            try {
-                Thread.sleep(RETRY_INTERVAL);
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
-            }
-        }
-        return false;
+        return cacheCodec.decode(bytes, type);
     }
 }
-
@@ -0,0 +1,50 @@
+package com.tibame.utils.redis;
+
+// CacheClient寫入Redis的資料格式
+// 格式: [1 byte 格式代碼][8 bytes 邏輯過期時間(epoch millis)][資料本體]
+// 過期時間放在固定長度的開頭, 資料本體直接反序列化成指定的型態
+// (舊版使用RedisData封裝成Json, 讀取時要經過 Json -> LinkedHashMap -> 物件 兩次轉換)
+public interface CacheCodec {
+    // 不設定邏輯過期時間 (一般過期方案使用)
+    long NO_LOGIC_EXPIRE = Long.MAX_VALUE;
+
+    /**
+     * 將物件編碼成緩存格式
+     *
+     * @param value        物件
+     * @param expireMillis 邏輯過期時間 (epoch millis)
+     * @return 編碼後的資料
+     */
+    byte[] encode(Object value, long expireMillis);
+
+    /**
+     * header的長度 (只需要判斷過期時間時, 讀取這個長度即可)
+     */
+    int headerSize();
+
+    /**
+     * 確認資料是否為此編碼器的格式 (例如舊版本留下來的Json字串)
+     *
+     * @param bytes Redis中的資料 (或只有header)
+     * @return 是否可以解碼
+     */
+    boolean canDecode(byte[] bytes);
+
+    /**
+     * 讀取邏輯過期時間
+     *
+     * @param bytes Redis中的資料 (或只有header)
+     * @return 邏輯過期時間 (epoch millis)
+     */
+    long readExpireMillis(byte[] bytes);
+
+    /**
+     * 將資料本體解碼成指定的型態
+     *
+     * @param bytes Redis中的資料
+     * @param type  指定的型態
+     * @param <R>   回傳的型態
+     * @return 解碼後的物件
+     */
+    <R> R decode(byte[] bytes, Class<R> type);
+}
@@ -0,0 +1,112 @@
+package com.tibame.utils.redis;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@Slf4j
+@Component
+public class CacheInvalidationBus implements MessageListener {
+    // 跨節點緩存失效通知:
+    //      多台Tomcat各自持有本地緩存(NearCache), 只刪除Redis無法清掉其他節點的本地副本
+    //      刪除緩存時透過Redis的發布/訂閱廣播key, 所有節點收到後移除本地緩存
+    // 批次處理:
+    //      短時間內大量的失效通知會先放進佇列, 每隔FLUSH_INTERVAL(或累積到BATCH_SIZE筆)合併成一則訊息發送
+    // 訊息格式:
+    //      第一行是發送節點的id (收到自己發出的訊息時直接略過, 本地緩存在發送前就已經移除), 之後每行一個key
+
+    public static final String CHANNEL = "cache:invalidate";
+    private static final long FLUSH_INTERVAL = 20L; // 毫秒
+    private static final int BATCH_SIZE = 200;
+
+    private final String nodeId = UUID.randomUUID().toString();
+    private final ConcurrentLinkedQueue<String> pendingKeys = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final ScheduledExecutorService flushExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "cache-invalidation-bus");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisMessageListenerContainer listenerContainer;
+    private final NearCache nearCache;
+
+    public CacheInvalidationBus(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer listenerContainer, NearCache nearCache) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+        this.nearCache = nearCache;
+    }
+
+    @PostConstruct
+    public void subscribe() {
+        listenerContainer.addMessageListener(this, new ChannelTopic(CHANNEL));
+        flushExecutor.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        // 關閉前把還沒送出的通知送完
+        flushExecutor.shutdown();
+        flush();
+    }
+
+    /**
+     * 通知所有節點移除本地緩存 (非同步批次送出)
+     *
+     * @param key 失效的key
+     */
+    public void publish(String key) {
+        pendingKeys.add(key);
+        if (pendingCount.incrementAndGet() >= BATCH_SIZE && !flushExecutor.isShutdown()) {
+            // 累積量已達上限, 不等待排程直接送出
+            flushExecutor.execute(this::flush);
+        }
+    }
+
+    private synchronized void flush() {
+        while (!pendingKeys.isEmpty()) {
+            List<String> batch = new ArrayList<>(BATCH_SIZE);
+            String key;
+            while (batch.size() < BATCH_SIZE && (key = pendingKeys.poll()) != null) {
+                batch.add(key);
+            }
+            pendingCount.addAndGet(-batch.size());
+
+            try {
+                stringRedisTemplate.convertAndSend(CHANNEL, nodeId + "\n" + String.join("\n", batch));
+            } catch (Exception e) {
+                // 通知失敗時其他節點的本地緩存會在邏輯過期後自然失效, 這裡只記錄錯誤
+                log.error("Failed to publish cache invalidation for {} keys", batch.size(), e);
+            }
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String[] lines = new String(message.getBody(), StandardCharsets.UTF_8).split("\n");
+        if (lines.length == 0 || nodeId.equals(lines[0])) {
+            // 自己發出的通知, 本地緩存已經處理過了
+            return;
+        }
+        for (int i = 1; i < lines.length; i++) {
+            nearCache.invalidate(lines[i]);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.tibame.utils.redis;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+@Slf4j
+@Component
+public class CacheRebuildScheduler {
+    // 緩存重建的共用執行緒池 (取代CacheClient與ImageCacheClient各自的newFixedThreadPool)
+    // 原本的問題:
+    //      無上限的佇列, 大量key同時過期時任務會不斷堆積; 任務拋出的例外被Future吃掉, 沒有任何紀錄
+    // 設計:
+    //      佇列上限: 超出QUEUE_CAPACITY時拒絕, 由呼叫端釋放鎖並繼續回傳舊資料 (之後的請求會再次嘗試)
+    //      去重複:   同一個key已經在排隊或執行中時不再重複加入 (呼叫端可以在上鎖前先確認, 省下一次SETNX)
+    //      優先度:   熱門的key優先重建, 相同優先度依照加入順序
+    //      監控:     佇列深度, 重建耗時, 失敗與拒絕次數 (/monitor/rebuild)
+    // 執行緒數量:
+    //      重建任務都會使用資料庫連線, 只使用連線池(10)的一半, 避免重建佔滿連線讓一般請求排隊
+
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_HOT = 1;
+
+    private static final int POOL_SIZE = 5;
+    private static final int QUEUE_CAPACITY = 1000;
+
+    private final ThreadPoolExecutor executor;
+    // 排隊中或執行中的key
+    private final ConcurrentHashMap<String, Task> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder deduplicated = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder totalWaitNanos = new LongAdder();
+    private final LongAdder totalRunNanos = new LongAdder();
+    private final AtomicLong maxRunNanos = new AtomicLong();
+
+    public CacheRebuildScheduler() {
+        AtomicInteger threadNumber = new AtomicInteger();
+        // PriorityBlockingQueue本身沒有上限, 由queued計數控制佇列長度
+        this.executor = new ThreadPoolExecutor(
+                POOL_SIZE,
+                POOL_SIZE,
+                0L,
+                TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>(),
+                r -> new Thread(r, "cache-rebuild-" + threadNumber.incrementAndGet())
+        );
+        // 執行緒數量未達核心數時, execute會直接建立執行緒執行任務而不經過佇列 (前POOL_SIZE個任務不依優先度排序)
+        // 先啟動所有核心執行緒, 讓每個任務都進入PriorityBlockingQueue排序
+        this.executor.prestartAllCoreThreads();
+    }
+
+    /**
+     * 這個key的重建任務是否已經在排隊或執行中
+     *
+     * @param key 緩存的key
+     */
+    public boolean isPending(String key) {
+        return pending.containsKey(key);
+    }
+
+    /**
+     * 加入重建任務
+     * 回傳false時任務不會執行, 呼叫端需要自行釋放為了這次重建取得的鎖
+     *
+     * @param key      緩存的key (去重複的依據)
+     * @param priority 優先度 (PRIORITY_HOT優先執行)
+     * @param rebuild  重建緩存的工作
+     * @return 是否成功加入佇列 (重複或佇列已滿時回傳false)
+     */
+    public boolean submit(String key, int priority, Runnable rebuild) {
+        Task task = new Task(key, priority, sequence.incrementAndGet(), rebuild);
+        if (pending.putIfAbsent(key, task) != null) {
+            deduplicated.increment();
+            return false;
+        }
+
+        if (queued.incrementAndGet() > QUEUE_CAPACITY || executor.isShutdown()) {
+            queued.decrementAndGet();
+            pending.remove(key, task);
+            rejected.increment();
+            log.warn("Cache rebuild queue is full, rejected rebuild of {}", key);
+            return false;
+        }
+
+        // 使用execute而不是submit: submit會包裝成FutureTask, 失去排序能力也會吞掉例外
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // isShutdown的檢查與execute之間執行緒池可能被關閉
+            queued.decrementAndGet();
+            pending.remove(key, task);
+            rejected.increment();
+            log.warn("Cache rebuild executor is shut down, rejected rebuild of {}", key);
+            return false;
+        }
+        submitted.increment();
+        return true;
+    }
+
+    /**
+     * 取得重建任務的統計數據
+     *
+     * @return 統計資料 (耗時的單位為毫秒)
+     */
+    public Map<String, Long> getStats() {
+        long completedCount = completed.sum() + failed.sum();
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("queueDepth", (long) queued.get());
+        stats.put("active", (long) executor.getActiveCount());
+        stats.put("submitted", submitted.sum());
+        stats.put("deduplicated", deduplicated.sum());
+        stats.put("rejected", rejected.sum());
+        stats.put("completed", completed.sum());
+        stats.put("failed", failed.sum());
+        stats.put("avgWaitMillis", completedCount == 0 ? 0L : TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.sum() / completedCount));
+        stats.put("avgRebuildMillis", completedCount == 0 ? 0L : TimeUnit.NANOSECONDS.toMillis(totalRunNanos.sum() / completedCount));
+        stats.put("maxRebuildMillis", TimeUnit.NANOSECONDS.toMillis(maxRunNanos.get()));
+        return stats;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        // 在關閉前, 先結束所有的執行緒工作 (避免jdbc連線未中止的錯誤)
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(60, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+                if (!executor.awaitTermination(60, TimeUnit.SECONDS)) {
+                    log.error("Cache rebuild executor did not terminate");
+                }
+            }
+        } catch (InterruptedException ie) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private class Task implements Runnable, Comparable<Task> {
+        private final String key;
+        private final int priority;
+        private final long sequence;
+        private final Runnable rebuild;
+        private final long createdNanos = System.nanoTime();
+
+        private Task(String key, int priority, long sequence, Runnable rebuild) {
+            this.key = key;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.rebuild = rebuild;
+        }
+
+        @Override
+        public void run() {
+            queued.decrementAndGet();
+            long start = System.nanoTime();
+            totalWaitNanos.add(start - createdNanos);
+            try {
+                rebuild.run();
+                completed.increment();
+            } catch (Throwable e) {
+                // 重建失敗時保留舊的緩存資料, 下次讀取到過期資料時會再重新嘗試
+                failed.increment();
+                log.error("Failed to rebuild cache {}", key, e);
+            } finally {
+                long elapsed = System.nanoTime() - start;
+                totalRunNanos.add(elapsed);
+                maxRunNanos.accumulateAndGet(elapsed, Math::max);
+                pending.remove(key, this);
+            }
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            // 優先度高的先執行, 相同優先度時先加入的先執行
+            if (priority != other.priority) {
+                return Integer.compare(other.priority, priority);
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+}
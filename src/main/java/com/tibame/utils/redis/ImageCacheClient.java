@@ -1,23 +1,33 @@
 package com.tibame.utils.redis;
 
+import com.tibame.dto.ImageMeta;
 import com.tibame.entity.Image;
+import com.tibame.utils.basic.CountMinSketch;
+import com.tibame.utils.basic.SingleFlight;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.RedisOperations;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.SessionCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.support.TransactionTemplate;
 
-import javax.annotation.PreDestroy;
 import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
 
 @Slf4j
@@ -36,22 +46,173 @@ public class ImageCacheClient {
     //      設定一個較長的過期時間(例如: 30分鐘, 甚至24小時),
     //      每次更新緩存重置時間, 過期後超過一段時間無人讀取, 自然淘汰消失
     //      同時避免大量長時間無人讀取的圖片佔用內存
+    // 共用圖片資料:
+    //      相同內容的圖片(重複上傳, 或相同的縮圖)各自有一筆緩存, 但圖片資料只存一份在 cache:img:blob:{contentHash}
+    //      每個id的緩存只保留基本資訊(mimetype, etag, size, 過期時間), 讀取時依照etag再以一次請求取回共用的資料 (兩個key不一定在同一個slot, 不在Lua中讀取)
+    //      共用的資料以內容為key, 內容不會改變, 刪除圖片時只需要刪除id的緩存, 共用的資料由自然淘汰移除
+    //      共用的資料被淘汰時視為緩存不存在, 走原本的重建流程
+    // 准入與記憶體預算:
+    //      不再以固定的大小決定是否緩存, 每次讀取都記錄到頻率草圖(CountMinSketch), 讀取次數達到MIN_ADMIT_FREQUENCY才考慮緩存
+    //      價值 = 讀取頻率 * 每次命中省下的成本 / 佔用的記憶體 = 頻率 * (1 + REQUEST_COST / 大小), 小圖片每次讀取的固定成本佔比較高
+    //      cache:img: 下的圖片資料總量不超過memoryBudget, 超過時由Lua依照價值由低到高淘汰, 要淘汰的資料價值不低於新資料時拒絕寫入
+    //      拒絕寫入的圖片以STATUS_NO_CACHE記錄, 之後的讀取重新判斷 (與不開啟緩存的圖片相同)
+    //      圖片的cacheEnabled = false 表示明確不緩存, 不經過准入判斷
+    // 壓縮:
+    //      未壓縮的格式(例如BMP)超過COMPRESS_THRESHOLD時以LZ4壓縮後存入, codec欄位記錄壓縮方式 (沒有此欄位的舊緩存視為未壓縮)
+    //      JPEG/PNG/GIF/WebP已經是壓縮過的格式, 不再嘗試 (只會浪費CPU); 記憶體預算以壓縮後的大小計算
+    // 分段儲存:
+    //      超過CHUNK_SIZE的共用資料改存在 cache:img:chunks:{hash} (hash結構, 欄位為段落編號), 每段各自以 [codec][資料] 儲存
+    //      id的緩存以chunks欄位記錄段數, 讀取時只確認段落的key是否存在 (一次回覆幾MB會阻塞Redis), 呼叫端再以readChunks分批讀取需要的段落
+    //      Range請求只讀取涵蓋範圍的段落; 每段各自壓縮, 段落的位置仍然對應原始資料
+    // 二進位標頭:
+    //      命中時需要的過期時間, mimetype, codec, 大小合併在header欄位 (ImageCacheHeader), 讀取時不需要解析字串
+    //      mimetype與etag仍以字串保存 (getMeta與組成共用資料的key使用), 命中時Lua只在需要時回傳
+    //      沒有header欄位的舊格式緩存視為不存在, 重建時改寫成新格式並移除舊的欄位
+    // 預算的記錄:
+    //      cache:img:budget:score (價值), cache:img:budget:expire (自然淘汰時間), cache:img:budget:size (大小), cache:img:budget:used (總量)
+    //      以資料所在的key為成員 (共用的資料以 cache:img:blob:{hash} 計算一次), 自然淘汰或被刪除的成員在下一次寫入時扣除
 
-    private static final Long LOCK_TTL = 10L;
-    private static final Long RETRY_INTERVAL = 50L;
-    private static final Long MAX_RETRY_COUNT = LOCK_TTL * 1000 / RETRY_INTERVAL;
+    private static final Long LOCK_WAIT = 10L; // 等待互斥鎖的上限(秒)
 
     private final static byte STATUS_NO_CACHE = 0;
     private final static byte STATUS_NO_IMAGE = 1;
 
+    private static final String BLOB_KEY_PREFIX = "cache:img:blob:";
+    private static final String CHUNK_KEY_PREFIX = "cache:img:chunks:";
+    public static final int CHUNK_SIZE = 64 * 1024;
+    private static final byte[][] META_FIELDS = {
+            "mimetype".getBytes(StandardCharsets.UTF_8),
+            "etag".getBytes(StandardCharsets.UTF_8),
+            "createdAt".getBytes(StandardCharsets.UTF_8),
+            "header".getBytes(StandardCharsets.UTF_8)
+    };
+    // 讀取緩存: 依序回傳 data, header, chunks, etag, mimetype
+    // 只讀取KEYS[1] (共用資料的key由etag組成, 與id的緩存不一定在同一個slot, 由呼叫端再以一次請求讀取)
+    // etag只在沒有data欄位時回傳 (呼叫端組成共用資料的key使用), mimetype只在header沒有對應的編號時回傳
+    @SuppressWarnings("unchecked")
+    private static final DefaultRedisScript<List<byte[]>> READ_SCRIPT = new DefaultRedisScript<>(
+            "local entry = redis.call('hmget', KEYS[1], 'data', 'header', 'etag', 'chunks', 'mimetype') " +
+                    "if entry[2] then " +
+                    "if entry[1] then entry[3] = false entry[4] = false end " +
+                    "if string.byte(entry[2], " + (ImageCacheHeader.MIMETYPE_OFFSET + 1) + ") ~= 0 then entry[5] = false end " +
+                    "else " +
+                    "entry[3] = false entry[4] = false entry[5] = false " +
+                    "end " +
+                    "return {entry[1], entry[2], entry[4], entry[3], entry[5]}",
+            (Class<List<byte[]>>) (Class<?>) List.class
+    );
+    private static final int COMPRESS_THRESHOLD = 1024;
+    private static final Set<String> COMPRESSED_MIMETYPES = Set.of("image/jpeg", "image/png", "image/gif", "image/webp");
+
+    private static final int MIN_ADMIT_FREQUENCY = 2; // 只讀取過一次的圖片不緩存
+    private static final long REQUEST_COST = 16384L; // 未命中時每次讀取的固定成本 (以bytes估計: 資料庫或磁碟的往返)
+    private static final int MAX_ENTRY_RATIO = 8; // 單張圖片最多佔用預算的1/8
+    private static final int MAX_EVICTIONS = 16; // 一次寫入最多淘汰的數量
+    private static final int SKETCH_KEYS = 10000;
+    private static final List<String> BUDGET_KEYS = Arrays.asList(
+            "cache:img:budget:score",
+            "cache:img:budget:expire",
+            "cache:img:budget:size",
+            "cache:img:budget:used"
+    );
+    // 准入: 先扣除已經自然淘汰的成員, 預算不足時依照價值由低到高淘汰 (不存在的成員直接扣除)
+    // 要淘汰的成員價值不低於新資料時拒絕 (回傳0), 成功時記錄新資料 (回傳1)
+    private static final DefaultRedisScript<Long> ADMIT_SCRIPT = new DefaultRedisScript<>(
+            "local member, size, score, budget = ARGV[1], tonumber(ARGV[2]), tonumber(ARGV[3]), tonumber(ARGV[4]) " +
+                    "local used = tonumber(redis.call('get', KEYS[4]) or '0') " +
+                    "for _, m in ipairs(redis.call('zrangebyscore', KEYS[2], '-inf', ARGV[5])) do " +
+                    "used = used - tonumber(redis.call('hget', KEYS[3], m) or '0') " +
+                    "redis.call('zrem', KEYS[1], m) redis.call('zrem', KEYS[2], m) redis.call('hdel', KEYS[3], m) " +
+                    "end " +
+                    "local purged = used " +
+                    "used = used - tonumber(redis.call('hget', KEYS[3], member) or '0') " +
+                    "local victims = {} " +
+                    "local index = 0 " +
+                    "while used + size > budget do " +
+                    "local victim = redis.call('zrange', KEYS[1], index, index, 'WITHSCORES') " +
+                    "index = index + 1 " +
+                    "if #victim == 0 or index > tonumber(ARGV[7]) then redis.call('set', KEYS[4], purged) return 0 end " +
+                    "if victim[1] ~= member then " +
+                    "if redis.call('exists', victim[1]) == 1 and tonumber(victim[2]) >= score then redis.call('set', KEYS[4], purged) return 0 end " +
+                    "victims[#victims + 1] = victim[1] " +
+                    "used = used - tonumber(redis.call('hget', KEYS[3], victim[1]) or '0') " +
+                    "end " +
+                    "end " +
+                    "for _, m in ipairs(victims) do " +
+                    "redis.call('del', m) redis.call('zrem', KEYS[1], m) redis.call('zrem', KEYS[2], m) redis.call('hdel', KEYS[3], m) " +
+                    "end " +
+                    "redis.call('zadd', KEYS[1], score, member) " +
+                    "redis.call('zadd', KEYS[2], ARGV[6], member) " +
+                    "redis.call('hset', KEYS[3], member, size) " +
+                    "redis.call('set', KEYS[4], used + size) " +
+                    "return 1",
+            Long.class
+    );
+
+    // single flight的回傳值: 表示緩存已經被其他人重建, 需要重新讀取Redis
+    private static final Image CACHE_REBUILT = new Image();
+    private final SingleFlight singleFlight = new SingleFlight();
+    private final PayloadCompressor compressor = new PayloadCompressor(COMPRESS_THRESHOLD);
+    private final CountMinSketch frequencySketch = new CountMinSketch(SKETCH_KEYS);
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
     private final RedisTemplate<String, byte[]> redisTemplateForImage;
     private final StringRedisTemplate stringRedisTemplate;
     private final TransactionTemplate transactionTemplate;
+    private final CacheInvalidationBus invalidationBus;
+    private final RedisLock redisLock;
+    private final CacheRebuildScheduler rebuildScheduler;
+    private final RefreshAheadScheduler refreshAheadScheduler;
+    private final long memoryBudget;
 
-    public ImageCacheClient(RedisTemplate<String, byte[]> redisTemplateForImage, StringRedisTemplate stringRedisTemplate, TransactionTemplate transactionTemplate) {
+    public ImageCacheClient(RedisTemplate<String, byte[]> redisTemplateForImage, StringRedisTemplate stringRedisTemplate, TransactionTemplate transactionTemplate, CacheInvalidationBus invalidationBus, RedisLock redisLock, CacheRebuildScheduler rebuildScheduler, RefreshAheadScheduler refreshAheadScheduler, @Value("${image.cache.budget:67108864}") long memoryBudget) {
         this.redisTemplateForImage = redisTemplateForImage;
         this.stringRedisTemplate = stringRedisTemplate;
         this.transactionTemplate = transactionTemplate;
+        this.invalidationBus = invalidationBus;
+        this.redisLock = redisLock;
+        this.rebuildScheduler = rebuildScheduler;
+        this.refreshAheadScheduler = refreshAheadScheduler;
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * 是否可能通過准入 (只檢查本地的讀取頻率與大小, 不存取Redis)
+     * 呼叫端以此決定重建緩存時是否需要載入圖片資料
+     *
+     * @param key  緩存的key
+     * @param size 圖片資料的大小
+     */
+    public boolean mightAdmit(String key, long size) {
+        return size <= memoryBudget / MAX_ENTRY_RATIO && frequencySketch.estimate(key) >= MIN_ADMIT_FREQUENCY;
+    }
+
+    /**
+     * 取得准入與記憶體預算的統計數據
+     *
+     * @return 統計資料
+     */
+    public Map<String, Long> getAdmissionStats() {
+        String used = stringRedisTemplate.opsForValue().get(BUDGET_KEYS.get(3));
+        Long entries = stringRedisTemplate.opsForZSet().zCard(BUDGET_KEYS.get(0));
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("budget", memoryBudget);
+        stats.put("used", used == null ? 0L : Long.parseLong(used));
+        stats.put("entries", entries == null ? 0L : entries);
+        stats.put("admitted", admitted.sum());
+        stats.put("rejected", rejected.sum());
+        return stats;
+    }
+
+    /**
+     * 移除圖片緩存, 並通知其他節點移除本地的副本
+     *
+     * @param key key
+     */
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+        invalidationBus.publish(key);
     }
 
     /**
@@ -67,7 +228,7 @@ public class ImageCacheClient {
                 operations.multi();
                 operations.persist(key);
                 operations.opsForHash().put(key, "data", new byte[]{STATUS_NO_CACHE});
-                operations.opsForHash().delete(key, "mimetype", "expireTime");  // 移除狀態碼不需要的欄位, 避免佔用記憶體
+                operations.opsForHash().delete(key, "mimetype", "header", "etag", "createdAt", "chunks", "expireTime", "size", "codec");  // 移除狀態碼不需要的欄位, 避免佔用記憶體
                 operations.exec();
                 return null;
             }
@@ -87,7 +248,7 @@ public class ImageCacheClient {
                 operations.multi();
                 operations.persist(key);
                 operations.opsForHash().put(key, "data", new byte[]{STATUS_NO_IMAGE});
-                operations.opsForHash().delete(key, "mimetype", "expireTime");  // 移除狀態碼不需要的欄位, 避免佔用記憶體
+                operations.opsForHash().delete(key, "mimetype", "header", "etag", "createdAt", "chunks", "expireTime", "size", "codec");  // 移除狀態碼不需要的欄位, 避免佔用記憶體
                 operations.expire(key, statusTTL, unit);
                 operations.exec();
                 return null;
@@ -95,6 +256,16 @@ public class ImageCacheClient {
         });
     }
 
+    /**
+     * 設立找不到此張圖片的狀態碼 (依照TtlPolicy設立過期時間)
+     *
+     * @param key       key
+     * @param statusTTL 狀態的過期時間策略
+     */
+    public void setStatusNoImage(String key, TtlPolicy statusTTL) {
+        setStatusNoImage(key, statusTTL.nextMillis(), TimeUnit.MILLISECONDS);
+    }
+
     /**
      * 將數據存到Redis資料庫中 並設立邏輯過期時間 (建立圖片緩存時使用)
      *
@@ -106,19 +277,233 @@ public class ImageCacheClient {
      * @param unit       時間單位
      */
     public void setWithLogicExpire(String key, byte[] data, String mimetype, Long dataTTL, Long naturalTTL, TimeUnit unit) {
-        LocalDateTime expireTime = LocalDateTime.now().plusSeconds(unit.toSeconds(dataTTL));
-        String expireTimeStr = String.valueOf(expireTime);
-
         Map<String, byte[]> map = new HashMap<>();
-        map.put("data", data);
+        map.put("data", encodeData(mimetype, data, map));
         map.put("mimetype", mimetype.getBytes(StandardCharsets.UTF_8));
-        map.put("expireTime", expireTimeStr.getBytes(StandardCharsets.UTF_8));
+        putWithLogicExpire(key, map, null, null, null, dataTTL, naturalTTL, unit);
+    }
+
+    /**
+     * 依照TtlPolicy設立邏輯過期與自然淘汰時間 (兩者各自抽樣, 自然淘汰時間不會早於邏輯過期時間)
+     *
+     * @param key        key
+     * @param data       圖片byte陣列
+     * @param mimetype   資料型態
+     * @param dataTTL    邏輯過期時間策略
+     * @param naturalTTL 自然淘汰時間策略
+     */
+    public void setWithLogicExpire(String key, byte[] data, String mimetype, TtlPolicy dataTTL, TtlPolicy naturalTTL) {
+        long dataMillis = dataTTL.nextMillis();
+        long naturalMillis = Math.max(naturalTTL.nextMillis(), dataMillis);
+        setWithLogicExpire(key, data, mimetype, dataMillis, naturalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 將圖片連同HTTP條件請求需要的欄位(ETag, 建立時間)存入緩存
+     * 之後的條件請求可以只讀取這些欄位回應304, 不需要讀取圖片資料
+     * 寫入前先經過准入判斷, 記憶體預算不足且無法淘汰價值更低的資料時不寫入
+     *
+     * @param key        key
+     * @param image      圖片
+     * @param dataTTL    邏輯過期時間策略
+     * @param naturalTTL 自然淘汰時間策略
+     * @return 是否寫入緩存
+     */
+    public boolean setWithLogicExpire(String key, Image image, TtlPolicy dataTTL, TtlPolicy naturalTTL) {
+        Map<String, byte[]> map = new HashMap<>();
+        map.put("mimetype", image.getMimetype().getBytes(StandardCharsets.UTF_8));
+        if (image.getCreatedAt() != null) {
+            map.put("createdAt", String.valueOf(image.getCreatedAt()).getBytes(StandardCharsets.UTF_8));
+        }
+        byte[] stored = null;
+        Map<String, byte[]> chunks = null;
+        String blobKey = null;
+        long storedSize;
+        if (image.getContentHash() != null && image.getData().length > CHUNK_SIZE) {
+            // 大圖片分段存放在以內容為key的共用緩存
+            map.put("etag", image.getContentHash().getBytes(StandardCharsets.UTF_8));
+            chunks = encodeChunks(image.getMimetype(), image.getData());
+            // 每段各自記錄codec, header的codec不使用
+            map.put("header", ImageCacheHeader.encode(image.getMimetype(), PayloadCompressor.CODEC_RAW, image.getData().length));
+            map.put("chunks", String.valueOf(chunks.size()).getBytes(StandardCharsets.UTF_8));
+            blobKey = CHUNK_KEY_PREFIX + image.getContentHash();
+            storedSize = chunks.values().stream().mapToLong(chunk -> chunk.length).sum();
+        } else {
+            stored = encodeData(image.getMimetype(), image.getData(), map);
+            if (image.getContentHash() != null) {
+                // 圖片資料存放在以內容為key的共用緩存 (相同內容的壓縮結果相同)
+                map.put("etag", image.getContentHash().getBytes(StandardCharsets.UTF_8));
+                blobKey = BLOB_KEY_PREFIX + image.getContentHash();
+            } else {
+                map.put("data", stored);
+            }
+            storedSize = stored.length;
+        }
+
+        long dataMillis = dataTTL.nextMillis();
+        long naturalMillis = Math.max(naturalTTL.nextMillis(), dataMillis);
+        if (!admit(key, blobKey != null ? blobKey : key, storedSize, naturalMillis)) {
+            return false;
+        }
+        putWithLogicExpire(key, map, blobKey, stored, chunks, dataMillis, naturalMillis, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * 將資料切成CHUNK_SIZE的段落, 未壓縮的格式每段各自以LZ4壓縮
+     *
+     * @return 段落編號 -> [codec][資料]
+     */
+    private Map<String, byte[]> encodeChunks(String mimetype, byte[] data) {
+        boolean compressible = !COMPRESSED_MIMETYPES.contains(mimetype);
+        Map<String, byte[]> chunks = new LinkedHashMap<>();
+        for (int index = 0, offset = 0; offset < data.length; index++, offset += CHUNK_SIZE) {
+            int length = Math.min(CHUNK_SIZE, data.length - offset);
+            byte[] compressed = compressible ? compressor.compress(data, offset, length) : null;
+            byte[] chunk = new byte[1 + (compressed != null ? compressed.length : length)];
+            if (compressed != null) {
+                chunk[0] = PayloadCompressor.CODEC_LZ4;
+                System.arraycopy(compressed, 0, chunk, 1, compressed.length);
+            } else {
+                chunk[0] = PayloadCompressor.CODEC_RAW;
+                System.arraycopy(data, offset, chunk, 1, length);
+            }
+            chunks.put(String.valueOf(index), chunk);
+        }
+        return chunks;
+    }
+
+    /**
+     * 讀取分段儲存的圖片資料 (一次pipeline, 每段各自一個回覆, 不會有單一的大回覆阻塞Redis)
+     *
+     * @param contentHash 圖片資料的SHA-256 (緩存的etag)
+     * @param from        開始的段落編號 (包含)
+     * @param to          結束的段落編號 (不包含)
+     * @return 解壓後的段落, 段落已被淘汰時該位置為null
+     */
+    public List<byte[]> readChunks(String contentHash, int from, int to) {
+        byte[] rawKey = (CHUNK_KEY_PREFIX + contentHash).getBytes(StandardCharsets.UTF_8);
+        List<Object> results = redisTemplateForImage.executePipelined((RedisCallback<Object>) connection -> {
+            for (int index = from; index < to; index++) {
+                connection.hashCommands().hGet(rawKey, String.valueOf(index).getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+
+        List<byte[]> chunks = new ArrayList<>(results.size());
+        for (Object result : results) {
+            byte[] chunk = (byte[]) result;
+            if (chunk == null || chunk.length == 0) {
+                chunks.add(null);
+            } else if (chunk[0] == PayloadCompressor.CODEC_LZ4) {
+                chunks.add(PayloadCompressor.decompress(chunk, 1));
+            } else {
+                chunks.add(Arrays.copyOfRange(chunk, 1, chunk.length));
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * 未壓縮的格式以LZ4壓縮, 並在map中記錄header (包含codec與壓縮前的大小)
+     *
+     * @return 要存入Redis的資料 (壓縮後或原始資料)
+     */
+    private byte[] encodeData(String mimetype, byte[] data, Map<String, byte[]> map) {
+        byte[] compressed = COMPRESSED_MIMETYPES.contains(mimetype) ? null : compressor.compress(data);
+        byte codec = compressed != null ? PayloadCompressor.CODEC_LZ4 : PayloadCompressor.CODEC_RAW;
+        map.put("header", ImageCacheHeader.encode(mimetype, codec, data.length));
+        return compressed != null ? compressed : data;
+    }
+
+    /**
+     * 准入判斷並預留記憶體預算
+     *
+     * @param key           緩存的key (讀取頻率以此記錄)
+     * @param member        圖片資料所在的key (共用的資料只計算一次)
+     * @param size          圖片資料的大小
+     * @param naturalMillis 自然淘汰時間 (毫秒)
+     */
+    private boolean admit(String key, String member, long size, long naturalMillis) {
+        if (!mightAdmit(key, size)) {
+            rejected.increment();
+            return false;
+        }
+        double score = frequencySketch.estimate(key) * (1 + (double) REQUEST_COST / Math.max(1L, size));
+        long now = System.currentTimeMillis();
+        Long result = stringRedisTemplate.execute(
+                ADMIT_SCRIPT,
+                BUDGET_KEYS,
+                member,
+                String.valueOf(size),
+                String.valueOf(score),
+                String.valueOf(memoryBudget),
+                String.valueOf(now),
+                String.valueOf(now + naturalMillis),
+                String.valueOf(MAX_EVICTIONS)
+        );
+        if (result == null || result != 1L) {
+            rejected.increment();
+            return false;
+        }
+        admitted.increment();
+        return true;
+    }
+
+    /**
+     * 只讀取緩存中圖片的基本資訊 (不讀取圖片資料, 大小由header取得)
+     *
+     * @param key key
+     * @return 圖片的基本資訊, 緩存不存在, 是狀態碼或缺少ETag時回傳null
+     */
+    public ImageMeta getMeta(String key) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        List<byte[]> fields = redisTemplateForImage.execute((RedisCallback<List<byte[]>>) connection -> connection.hashCommands().hMGet(rawKey, META_FIELDS));
+        if (fields == null || fields.get(3) == null || fields.get(0) == null || fields.get(1) == null) {
+            // 緩存不存在, 是狀態碼, 或是舊格式/加入ETag之前建立的緩存
+            return null;
+        }
+
+        ImageMeta meta = new ImageMeta();
+        meta.setMimetype(new String(fields.get(0), StandardCharsets.UTF_8));
+        meta.setContentHash(new String(fields.get(1), StandardCharsets.UTF_8));
+        meta.setCacheEnabled(true);
+        meta.setSize(ImageCacheHeader.size(fields.get(3)));
+        if (fields.get(2) != null) {
+            meta.setCreatedAt(LocalDateTime.parse(new String(fields.get(2), StandardCharsets.UTF_8)));
+        }
+        return meta;
+    }
+
+    private void putWithLogicExpire(String key, Map<String, byte[]> map, String blobKey, byte[] blobData, Map<String, byte[]> blobChunks, Long dataTTL, Long naturalTTL, TimeUnit unit) {
+        ImageCacheHeader.setExpireMillis(map.get("header"), System.currentTimeMillis() + unit.toMillis(dataTTL));
 
         redisTemplateForImage.execute(new SessionCallback<Void>() {
             @Override
             public Void execute(RedisOperations operations) throws DataAccessException {
                 // 開啟redis事務, 確保putAll是原子性操作(主) 並降低網路開銷(副)
                 operations.multi();
+                if (blobChunks != null) {
+                    // 分段的資料以hash存放, 內容相同時段落也相同, 直接覆寫後重新設定自然淘汰時間
+                    operations.opsForHash().putAll(blobKey, blobChunks);
+                    if (naturalTTL > 0) {
+                        operations.expire(blobKey, naturalTTL, unit);
+                    } else {
+                        operations.persist(blobKey);
+                    }
+                    operations.opsForHash().delete(key, "data", "expireTime", "size", "codec");
+                } else if (blobKey != null) {
+                    // 共用的資料每次寫入都重新設定自然淘汰時間
+                    if (naturalTTL > 0) {
+                        operations.opsForValue().set(blobKey, blobData, naturalTTL, unit);
+                    } else {
+                        operations.opsForValue().set(blobKey, blobData);
+                    }
+                    // 由資料直接存放在緩存的格式改為共用時, 移除舊的資料欄位
+                    operations.opsForHash().delete(key, "data", "chunks", "expireTime", "size", "codec");
+                } else {
+                    operations.opsForHash().delete(key, "chunks", "expireTime", "size", "codec");
+                }
                 operations.persist(key);
                 operations.opsForHash().putAll(key, map);
                 if (naturalTTL > 0) operations.expire(key, naturalTTL, unit);
@@ -128,27 +513,6 @@ public class ImageCacheClient {
         });
     }
 
-    // TODO: 考慮之後變成一個執行緒的service接管所有的執行緒配置
-    // 更新圖片使用的執行序池
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
-
-    @PreDestroy
-    public void shutdownExecutorService() {
-        // 在關閉前, 先結束所有的執行緒工作 (避免jdbc連線未中止的錯誤)
-        CACHE_REBUILD_EXECUTOR.shutdown();
-        try {
-            if (!CACHE_REBUILD_EXECUTOR.awaitTermination(60, TimeUnit.SECONDS)) {
-                CACHE_REBUILD_EXECUTOR.shutdownNow();
-                if (!CACHE_REBUILD_EXECUTOR.awaitTermination(60, TimeUnit.SECONDS)) {
-                    System.err.println("ExecutorService did not terminate");
-                }
-            }
-        } catch (InterruptedException ie) {
-            CACHE_REBUILD_EXECUTOR.shutdownNow();
-            Thread.currentThread().interrupt();
-        }
-    }
-
     /**
      * 整合互斥鎖以及邏輯過期方案解決緩存穿透與緩存擊穿, 用於圖片緩存
      *
@@ -158,7 +522,6 @@ public class ImageCacheClient {
      * @param dataTTL    資料過期時間
      * @param statusTTL  狀態過期時間
      * @param naturalTTL 自然淘汰時間
-     * @param unit       時間單位
      * @param dbFallback 當Redis查詢失敗後, 搜尋SQL的函式
      * @return 查詢結果
      */
@@ -166,59 +529,36 @@ public class ImageCacheClient {
             String keyPrefix,
             String lockPrefix,
             Long id,
-            Long dataTTL,
-            Long statusTTL,
-            Long naturalTTL,
-            TimeUnit unit,
+            TtlPolicy dataTTL,
+            TtlPolicy statusTTL,
+            TtlPolicy naturalTTL,
             Function<Long, Image> dbFallback
     ) {
         String key = keyPrefix + id;
         String lockKey = lockPrefix + id;
 
-        Map<Object, Object> entries = redisTemplateForImage.opsForHash().entries(key);
-        byte[] data = (byte[]) entries.get("data");
+        frequencySketch.increment(key);
+        List<byte[]> entry = readEntry(key);
+        byte[] data = entry.get(0);
+        byte[] header = entry.get(1);
         while (true) {
-            if (data == null) {
+            if (!isCached(entry)) {
                 // 查詢不到資料, 需要去資料庫取得數據更新建立緩存 (互斥鎖方案)
-                if (!acquireLock(lockKey)) {
-                    // 超出重試上限, 還是沒有獲得鎖 (在目前設定下, 代表空轉了10秒)
-                    throw new RuntimeException("Unable to acquire lock after " + MAX_RETRY_COUNT + " retries");
+                // 同一個節點內只派出一個執行緒競爭鎖, 其餘執行緒等待同一個結果
+                Image image = singleFlight.execute(key, () -> rebuildWithMutex(key, lockKey, id, dataTTL, statusTTL, naturalTTL, dbFallback));
+                if (image != CACHE_REBUILT) {
+                    return image;
                 }
 
-                // 成功獲取鎖
-                try {
-                    // 再重新查詢一次緩存, 確認是否緩存已經被重建
-                    entries = redisTemplateForImage.opsForHash().entries(key);
-                    data = (byte[]) entries.get("data");
-                    if (data != null) {
-                        // 確認緩存已被重建, 重新進行一次分支判定
-                        continue;
-                    }
-
-                    // 確認緩存尚未建立, 開始進行資料緩存
-                    Image image = dbFallback.apply(id);
-                    if (image == null) {
-                        // 資料庫查詢不到這張圖片, 將狀態碼存入redis緩存 (防止連續請求打入資料庫)
-                        // 曾經考慮過不設定過期時間, 並在圖片上傳時檢查redis是否有對應id的狀態碼 (如果有就刪除)
-                        // 但考量到有風險, 還是決定使用一般過期時間的策略儲存狀態 (也許可以設定較長的過期時間?)
-                        // 風險: 因為後續系統都不會二次call資料庫檢查狀態 可能會變成後來有這張圖但redis一直以為沒有
-                        setStatusNoImage(key, statusTTL, TimeUnit.SECONDS);
-                    } else if (!image.isCacheEnabled()) {
-                        // 查詢到資料 但不開啟緩存  將狀態碼存入redis緩存 (避免每次讀取不緩存的圖片都需要排隊讀取)
-                        // 這個狀態不設定過期時間, 下方db查詢回傳前檢查緩存狀態是否更改
-                        setStatusNoCache(key);
-                    } else {
-                        // 查詢到資料 且開啟緩存機制, 將資料存入redis緩存
-                        data = image.getData();
-                        String mimetype = image.getMimetype();
-                        setWithLogicExpire(key, data, mimetype, dataTTL, naturalTTL, unit);
-                    }
-                    return image;
-                } finally {
-                    // 確保離開時解鎖
-                    unlock(lockKey);
+                // 緩存已被其他人重建, 重新進行一次分支判定
+                entry = readEntry(key);
+                data = entry.get(0);
+                header = entry.get(1);
+                if (!isCached(entry)) {
+                    // 重建後又馬上被移除 (例如圖片剛好被更新), 直接查詢資料庫
+                    return dbFallback.apply(id);
                 }
-            } else if (data.length == 1) {
+            } else if (header == null) {
                 // 查詢到資料, 但資料長度為1 (不可能構成一張合法的圖片)
                 // 將其設計為狀態碼
                 switch (data[0]) {
@@ -229,15 +569,17 @@ public class ImageCacheClient {
                         // 回傳前重新確認圖片狀態與緩存設定
                         if (image == null) {
                             // 找不到這張圖片(可能被刪除, 但因為某些因素redis資料沒有同步刪掉狀態碼), 修改原本的狀態碼
-                            setStatusNoImage(key, statusTTL, TimeUnit.SECONDS);
-                        } else if (image.isCacheEnabled()) {
-                            // 緩存狀態變為開啟, 嘗試獲取鎖
-                            if (tryLock(lockKey)) {
-                                // 獲取鎖成功, 將資料存入redis緩存
-                                data = image.getData();
-                                String mimetype = image.getMimetype();
-                                setWithLogicExpire(key, data, mimetype, dataTTL, naturalTTL, unit);
-                                unlock(lockKey);
+                            setStatusNoImage(key, statusTTL);
+                        } else if (image.isCacheEnabled() && image.getData() != null) {
+                            // 緩存狀態變為開啟(或讀取頻率已達到准入的門檻), 嘗試獲取鎖
+                            String token = redisLock.tryLock(lockKey);
+                            if (token != null) {
+                                // 獲取鎖成功, 將資料存入redis緩存 (沒有通過准入時維持原本的狀態碼)
+                                try {
+                                    setWithLogicExpire(key, image, dataTTL, naturalTTL);
+                                } finally {
+                                    redisLock.unlock(lockKey, token);
+                                }
                             }
                             // 沒獲取到鎖, 表示有其他人已經在重建緩存了 (不需要做任何事情)
                         }
@@ -247,64 +589,199 @@ public class ImageCacheClient {
                         return null;
                 }
             } else {
-                // 從緩存中查詢到資料
-                String mimetype = new String((byte[]) entries.get("mimetype"), StandardCharsets.UTF_8);
-                String expireString = new String((byte[]) entries.get("expireTime"), StandardCharsets.UTF_8);
-                // 當查詢到過期時間為null的時候強制視為過期 (實際邏輯上不太可能會發生)
-                LocalDateTime expireTime = LocalDateTime.parse(expireString);
-
-                if (expireTime.isBefore(LocalDateTime.now()) && tryLock(lockKey)) {
-                    // 資料過期且成功獲取鎖, 開啟新執行緒去更新圖片
-                    CACHE_REBUILD_EXECUTOR.submit(() -> {
-                        try {
-                            // 查詢資料庫 (新執行緒無法傳遞事務, 手動增加新的事務管理)
-                            Image image = transactionTemplate.execute(status -> dbFallback.apply(id));
-                            // 根據查詢結果設計對應的處理方式
-                            if (image == null) {
-                                // 查詢不到圖片
-                                setStatusNoImage(key, statusTTL, TimeUnit.SECONDS);
-                            } else if (!image.isCacheEnabled()) {
-                                // 圖片緩存狀態改為關閉
-                                setStatusNoCache(key);
-                            } else {
-                                // 更新圖片的緩存資料
-                                setWithLogicExpire(key, image.getData(), image.getMimetype(), dataTTL, naturalTTL, unit);
-                            }
-                        } catch (Exception e) {
-                            throw new RuntimeException(e);
-                        } finally {
-                            unlock(lockKey);
-                        }
-                    });
+                // 從緩存中查詢到資料 (過期時間與mimetype直接由header取得, 不解析字串)
+                long expireMillis = ImageCacheHeader.expireMillis(header);
+                String mimetype = ImageCacheHeader.mimetype(header);
+                if (mimetype == null) {
+                    mimetype = new String(entry.get(4), StandardCharsets.UTF_8);
+                }
+
+                recordAccess(key, lockKey, id, expireMillis, dataTTL, statusTTL, naturalTTL, dbFallback);
+                if (expireMillis < System.currentTimeMillis()) {
+                    // 資料過期, 嘗試上鎖並交給重建排程更新圖片
+                    scheduleRebuild(key, lockKey, id, dataTTL, statusTTL, naturalTTL, CacheRebuildScheduler.PRIORITY_NORMAL, dbFallback);
                 }
 
                 // 直接將舊的圖片回傳給客戶端 (因開啟緩存的圖片不具有高一致性要求)
                 Image image = new Image();
-                image.setData(data);
                 image.setMimetype(mimetype);
+                if (data != null) {
+                    image.setData(decodeData(data, ImageCacheHeader.codec(header)));
+                } else {
+                    // 分段儲存的資料由呼叫端以readChunks讀取需要的範圍
+                    image.setCachedInChunks(true);
+                    image.setContentHash(new String(entry.get(3), StandardCharsets.UTF_8));
+                    image.setSize(ImageCacheHeader.size(header));
+                }
                 return image;
             }
         }
     }
 
-    private boolean tryLock(String key) {
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "lock", LOCK_TTL, TimeUnit.SECONDS);
-        return flag != null && flag;
+    /**
+     * 嘗試上鎖並交給重建排程更新圖片 (沒搶到鎖表示已經有人在重建)
+     */
+    private void scheduleRebuild(
+            String key,
+            String lockKey,
+            Long id,
+            TtlPolicy dataTTL,
+            TtlPolicy statusTTL,
+            TtlPolicy naturalTTL,
+            int priority,
+            Function<Long, Image> dbFallback
+    ) {
+        String token = rebuildScheduler.isPending(key) ? null : redisLock.tryLock(lockKey);
+        if (token == null) {
+            return;
+        }
+
+        // 成功獲取鎖, 交給重建排程更新圖片 (例外由排程記錄)
+        boolean accepted = rebuildScheduler.submit(key, priority, () -> {
+            try {
+                // 查詢資料庫 (新執行緒無法傳遞事務, 手動增加新的事務管理)
+                Image image = transactionTemplate.execute(status -> dbFallback.apply(id));
+                // 根據查詢結果設計對應的處理方式
+                if (image == null) {
+                    // 查詢不到圖片
+                    setStatusNoImage(key, statusTTL);
+                } else if (!image.isCacheEnabled() || image.getData() == null || !setWithLogicExpire(key, image, dataTTL, naturalTTL)) {
+                    // 圖片緩存狀態改為關閉, 或沒有通過准入
+                    setStatusNoCache(key);
+                }
+            } finally {
+                redisLock.unlock(lockKey, token);
+            }
+        });
+        if (!accepted) {
+            // 排程拒絕 (佇列已滿): 釋放鎖, 讓之後的請求再次嘗試
+            redisLock.unlock(lockKey, token);
+        }
+    }
+
+    /**
+     * 記錄讀取頻率, 第一次讀取時註冊提前刷新的方式 (熱門圖片在邏輯過期前就先重建)
+     */
+    private void recordAccess(
+            String key,
+            String lockKey,
+            Long id,
+            long expireMillis,
+            TtlPolicy dataTTL,
+            TtlPolicy statusTTL,
+            TtlPolicy naturalTTL,
+            Function<Long, Image> dbFallback
+    ) {
+        if (!refreshAheadScheduler.recordAccess(key, expireMillis)) {
+            refreshAheadScheduler.track(key, expireMillis, knownExpireMillis -> {
+                // 只讀取header欄位, 確認其他節點是否已經刷新過
+                byte[] header = (byte[]) redisTemplateForImage.opsForHash().get(key, "header");
+                if (header == null) {
+                    // 緩存不存在或已變成狀態碼
+                    return -1L;
+                }
+                long redisExpireMillis = ImageCacheHeader.expireMillis(header);
+                if (redisExpireMillis <= knownExpireMillis) {
+                    scheduleRebuild(key, lockKey, id, dataTTL, statusTTL, naturalTTL, CacheRebuildScheduler.PRIORITY_HOT, dbFallback);
+                }
+                return redisExpireMillis;
+            });
+        }
     }
 
-    private void unlock(String key) {
-        stringRedisTemplate.delete(key);
+    private static byte[] decodeData(byte[] data, byte codec) {
+        if (codec == PayloadCompressor.CODEC_LZ4) {
+            return PayloadCompressor.decompress(data, 0);
+        }
+        return data;
     }
 
-    private boolean acquireLock(String lockKey) {
-        for (int i = 0; i < MAX_RETRY_COUNT; i++) {
-            if (tryLock(lockKey)) return true;
-            try {
-                Thread.sleep(RETRY_INTERVAL);
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
+    /**
+     * 讀取緩存的 data, header, chunks, etag, mimetype
+     * 圖片資料在共用的key時再讀取一次 (分段儲存只確認段落的key是否存在, 不讀取資料)
+     * 兩次請求之間緩存可能被更新, 共用資料以內容為key, 讀到的仍是某個版本完整的圖片資料
+     *
+     * @return 五個欄位的值, 不存在或不需要的欄位為null (共用的資料已被淘汰時data與chunks為null, etag只在分段儲存時回傳)
+     */
+    private List<byte[]> readEntry(String key) {
+        List<byte[]> result = redisTemplateForImage.execute(READ_SCRIPT, Collections.singletonList(key));
+        if (result == null) {
+            return Arrays.asList((byte[]) null, null, null, null, null);
+        }
+        List<byte[]> entry = new ArrayList<>(result);
+        byte[] etag = entry.get(3);
+        if (etag != null) {
+            String contentHash = new String(etag, StandardCharsets.UTF_8);
+            if (entry.get(2) != null) {
+                if (!Boolean.TRUE.equals(redisTemplateForImage.hasKey(CHUNK_KEY_PREFIX + contentHash))) {
+                    entry.set(2, null);
+                }
+            } else {
+                entry.set(0, redisTemplateForImage.opsForValue().get(BLOB_KEY_PREFIX + contentHash));
+            }
+            if (entry.get(2) == null) {
+                entry.set(3, null);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * 緩存是否存在 (狀態碼, 或是有header且資料/段落還沒被淘汰; 沒有header的舊格式視為不存在)
+     */
+    private static boolean isCached(List<byte[]> entry) {
+        if (entry.get(1) == null) {
+            return entry.get(0) != null && entry.get(0).length == 1;
+        }
+        return entry.get(0) != null || entry.get(2) != null;
+    }
+
+    /**
+     * 緩存不存在時, 取得互斥鎖後查詢資料庫並建立緩存
+     * 由single flight呼叫, 同一個節點同時只會有一個執行緒進入
+     *
+     * @return 資料庫查詢結果, 緩存已經被其他人重建時回傳CACHE_REBUILT
+     */
+    private Image rebuildWithMutex(
+            String key,
+            String lockKey,
+            Long id,
+            TtlPolicy dataTTL,
+            TtlPolicy statusTTL,
+            TtlPolicy naturalTTL,
+            Function<Long, Image> dbFallback
+    ) {
+        // 等待解鎖通知取得鎖 (不再固定間隔輪詢)
+        String token = redisLock.lock(lockKey, LOCK_WAIT, TimeUnit.SECONDS);
+        if (token == null) {
+            // 超出等待上限, 還是沒有獲得鎖
+            throw new RuntimeException("Unable to acquire lock " + lockKey + " within " + LOCK_WAIT + " seconds");
+        }
+
+        // 成功獲取鎖
+        try {
+            // 再重新查詢一次緩存, 確認是否緩存已經被重建
+            if (isCached(readEntry(key))) {
+                return CACHE_REBUILT;
+            }
+
+            // 確認緩存尚未建立, 開始進行資料緩存
+            Image image = dbFallback.apply(id);
+            if (image == null) {
+                // 資料庫查詢不到這張圖片, 將狀態碼存入redis緩存 (防止連續請求打入資料庫)
+                // 曾經考慮過不設定過期時間, 並在圖片上傳時檢查redis是否有對應id的狀態碼 (如果有就刪除)
+                // 但考量到有風險, 還是決定使用一般過期時間的策略儲存狀態 (也許可以設定較長的過期時間?)
+                // 風險: 因為後續系統都不會二次call資料庫檢查狀態 可能會變成後來有這張圖但redis一直以為沒有
+                setStatusNoImage(key, statusTTL);
+            } else if (!image.isCacheEnabled() || image.getData() == null || !setWithLogicExpire(key, image, dataTTL, naturalTTL)) {
+                // 查詢到資料 但不開啟緩存或沒有通過准入, 將狀態碼存入redis緩存 (避免每次讀取不緩存的圖片都需要排隊讀取)
+                // 這個狀態不設定過期時間, 下方db查詢回傳前檢查緩存狀態是否更改
+                setStatusNoCache(key);
             }
+            return image;
+        } finally {
+            // 確保離開時解鎖 (只會刪除自己持有的鎖)
+            redisLock.unlock(lockKey, token);
         }
-        return false;
     }
-}
\ No newline at end of file
+}
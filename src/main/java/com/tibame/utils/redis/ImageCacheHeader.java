@@ -0,0 +1,76 @@
+package com.tibame.utils.redis;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+// 圖片緩存的二進位標頭 (ImageCacheClient的header欄位)
+// 問題:
+//      原本命中時要把expireTime字串解析成LocalDateTime再換算epoch, mimetype/size/codec也各自是一個字串欄位
+// 做法:
+//      命中路徑需要的欄位合併成固定長度的byte[], 以VarHandle直接讀寫, 不建立字串與暫存物件
+//      常見的mimetype以編號記錄, 讀取時回傳常數字串; 編號0表示其他格式, 由mimetype欄位取得
+// 格式 (big-endian, 共HEADER_LENGTH bytes):
+//      [8 bytes 邏輯過期時間 (epoch millis)][1 byte mimetype編號][1 byte codec][8 bytes 圖片資料的大小]
+final class ImageCacheHeader {
+    static final int HEADER_LENGTH = 18;
+    // 編號即為陣列的位置, 只能在最後新增 (已寫入緩存的編號不能改變)
+    private static final String[] MIMETYPES = {null, "image/jpeg", "image/png", "image/gif", "image/webp", "image/bmp"};
+
+    private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    private static final int EXPIRE_OFFSET = 0;
+    static final int MIMETYPE_OFFSET = 8;
+    private static final int CODEC_OFFSET = 9;
+    private static final int SIZE_OFFSET = 10;
+
+    private ImageCacheHeader() {
+    }
+
+    /**
+     * 建立標頭 (過期時間由寫入時以setExpireMillis設定)
+     *
+     * @param mimetype 資料型態
+     * @param codec    壓縮方式 (PayloadCompressor.CODEC_RAW / CODEC_LZ4)
+     * @param size     圖片資料的大小 (壓縮前)
+     */
+    static byte[] encode(String mimetype, byte codec, long size) {
+        byte[] header = new byte[HEADER_LENGTH];
+        header[MIMETYPE_OFFSET] = mimetypeCode(mimetype);
+        header[CODEC_OFFSET] = codec;
+        LONG.set(header, SIZE_OFFSET, size);
+        return header;
+    }
+
+    static void setExpireMillis(byte[] header, long expireMillis) {
+        LONG.set(header, EXPIRE_OFFSET, expireMillis);
+    }
+
+    static long expireMillis(byte[] header) {
+        return (long) LONG.get(header, EXPIRE_OFFSET);
+    }
+
+    /**
+     * @return mimetype的常數字串, 不在編號表內的格式回傳null (由mimetype欄位取得)
+     */
+    static String mimetype(byte[] header) {
+        int code = header[MIMETYPE_OFFSET];
+        return code > 0 && code < MIMETYPES.length ? MIMETYPES[code] : null;
+    }
+
+    static byte codec(byte[] header) {
+        return header[CODEC_OFFSET];
+    }
+
+    static long size(byte[] header) {
+        return (long) LONG.get(header, SIZE_OFFSET);
+    }
+
+    private static byte mimetypeCode(String mimetype) {
+        for (int code = 1; code < MIMETYPES.length; code++) {
+            if (MIMETYPES[code].equals(mimetype)) {
+                return (byte) code;
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,125 @@
+package com.tibame.utils.redis;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+
+@Component
+public class NearCache {
+    // 本地緩存(L1)設計思路:
+    //      熱門的key每次都要走一趟Redis並重新解析Json, 網路往返佔了大部分的延遲
+    //      在JVM內保留一份已經反序列化的物件, 命中時直接回傳
+    // 淘汰策略:
+    //      使用Caffeine (W-TinyLFU), 以Redis中的資料長度估算佔用的記憶體, 超出上限時淘汰
+    // 過期策略:
+    //      記錄與Redis中資料相同的邏輯過期時間, 邏輯過期後仍保留到自然淘汰時間 (retainMillis)
+    //      邏輯過期的資料由CacheClient只讀取Redis的header判斷是否有新版本, 沒有的話直接使用本地的舊資料
+    // 注意:
+    //      回傳的物件是共用的實例, 呼叫端請當作唯讀物件使用
+
+    private static final long MAX_WEIGHT = 64L * 1024 * 1024; // 以序列化後的長度估算, 約64MB
+
+    private final Cache<String, Entry> cache;
+
+    public NearCache() {
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(MAX_WEIGHT)
+                .weigher((String key, Entry entry) -> entry.getWeight())
+                .expireAfter(new Expiry<String, Entry>() {
+                    @Override
+                    public long expireAfterCreate(String key, Entry entry, long currentTime) {
+                        return entry.remainingNanos();
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(String key, Entry entry, long currentTime, long currentDuration) {
+                        return entry.remainingNanos();
+                    }
+
+                    @Override
+                    public long expireAfterRead(String key, Entry entry, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * 查詢本地緩存
+     *
+     * @param key key
+     * @return 緩存的資料, 不存在或已過期時回傳null
+     */
+    public Entry getIfPresent(String key) {
+        return cache.getIfPresent(key);
+    }
+
+    /**
+     * 將已反序列化的物件存入本地緩存
+     *
+     * @param key          key
+     * @param value        物件 (null表示資料庫中沒有這筆資料)
+     * @param expireMillis 邏輯過期時間 (epoch millis)
+     * @param retainMillis 本地緩存保留到的時間 (epoch millis, 通常是Redis的自然淘汰時間)
+     * @param weight       估算的佔用大小 (通常使用Redis中的資料長度)
+     */
+    public void put(String key, Object value, long expireMillis, long retainMillis, int weight) {
+        cache.put(key, new Entry(value, expireMillis, Math.max(retainMillis, expireMillis), Math.max(weight, 1)));
+    }
+
+    /**
+     * 將找不到資料的狀態存入本地緩存
+     *
+     * @param key       key
+     * @param statusTTL 狀態的過期時間
+     * @param unit      時間單位
+     */
+    public void putNull(String key, Long statusTTL, TimeUnit unit) {
+        long expireMillis = System.currentTimeMillis() + unit.toMillis(statusTTL);
+        cache.put(key, new Entry(null, expireMillis, expireMillis, 1));
+    }
+
+    /**
+     * 移除本地緩存
+     *
+     * @param key key
+     */
+    public void invalidate(String key) {
+        cache.invalidate(key);
+    }
+
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    public long estimatedSize() {
+        return cache.estimatedSize();
+    }
+
+    @Getter
+    @AllArgsConstructor
+    public static class Entry {
+        private final Object value;
+        private final long expireMillis;
+        private final long retainMillis;
+        private final int weight;
+
+        /**
+         * 是否已經邏輯過期
+         */
+        public boolean isExpired() {
+            return expireMillis < System.currentTimeMillis();
+        }
+
+        private long remainingNanos() {
+            return TimeUnit.MILLISECONDS.toNanos(Math.max(retainMillis - System.currentTimeMillis(), 0));
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.tibame.utils.redis;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+
+import java.nio.ByteBuffer;
+
+// 緩存資料的壓縮 (CacheClient與ImageCacheClient共用)
+// 做法:
+//      使用LZ4 (壓縮率不如gzip/zstd, 但壓縮與解壓都非常快, 讀取時的成本幾乎可以忽略)
+//      小於threshold的資料不壓縮 (壓縮後省下的空間不值得CPU成本)
+//      壓縮後沒有小於原本的MIN_SAVING_RATIO時放棄壓縮 (JPEG/PNG等已經壓縮過的格式)
+// 格式:
+//      呼叫端以codec byte記錄是否壓縮 (CODEC_RAW / CODEC_LZ4)
+//      壓縮後的資料: [4 bytes 原始長度][LZ4 block]
+public class PayloadCompressor {
+    public static final byte CODEC_RAW = 0;
+    public static final byte CODEC_LZ4 = 1;
+
+    private static final double MIN_SAVING_RATIO = 0.9;
+    private static final LZ4Factory LZ4 = LZ4Factory.fastestInstance();
+
+    // LZ4的壓縮器與解壓器沒有狀態, 可以共用
+    private static final LZ4Compressor COMPRESSOR = LZ4.fastCompressor();
+    private static final LZ4FastDecompressor DECOMPRESSOR = LZ4.fastDecompressor();
+
+    private final int threshold;
+
+    /**
+     * @param threshold 開始壓縮的資料大小 (bytes)
+     */
+    public PayloadCompressor(int threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * 壓縮資料
+     *
+     * @param data   資料
+     * @param offset 開始位置
+     * @param length 長度
+     * @return 壓縮後的資料, 不需要壓縮或壓縮效果不佳時回傳null (呼叫端直接儲存原始資料)
+     */
+    public byte[] compress(byte[] data, int offset, int length) {
+        if (length < threshold) {
+            return null;
+        }
+        byte[] buffer = new byte[Integer.BYTES + COMPRESSOR.maxCompressedLength(length)];
+        ByteBuffer.wrap(buffer).putInt(length);
+        int compressedLength = COMPRESSOR.compress(data, offset, length, buffer, Integer.BYTES);
+        int total = Integer.BYTES + compressedLength;
+        if (total > length * MIN_SAVING_RATIO) {
+            return null;
+        }
+        byte[] result = new byte[total];
+        System.arraycopy(buffer, 0, result, 0, total);
+        return result;
+    }
+
+    /**
+     * 壓縮資料
+     *
+     * @return 壓縮後的資料, 不需要壓縮或壓縮效果不佳時回傳null
+     */
+    public byte[] compress(byte[] data) {
+        return compress(data, 0, data.length);
+    }
+
+    /**
+     * 解壓縮 (與threshold無關, 不壓縮的設定也能讀取壓縮過的資料)
+     *
+     * @param bytes  壓縮後的資料 ([4 bytes 原始長度][LZ4 block])
+     * @param offset 開始位置
+     * @return 原始資料
+     */
+    public static byte[] decompress(byte[] bytes, int offset) {
+        int length = ByteBuffer.wrap(bytes, offset, Integer.BYTES).getInt();
+        byte[] result = new byte[length];
+        DECOMPRESSOR.decompress(bytes, offset + Integer.BYTES, result, 0, length);
+        return result;
+    }
+}
@@ -0,0 +1,299 @@
+package com.tibame.utils.redis;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+@Slf4j
+public class RedisBloomFilter {
+    // 以Redis的bitmap實作的布隆過濾器 (防止緩存穿透)
+    // 問題:
+    //      查詢不存在的id時仍然會上鎖, 查詢資料庫, 並寫入一筆空值/狀態碼; 隨機id的掃描會讓Redis塞滿短期的空值
+    // 做法:
+    //      記錄所有已發出的id, 查詢前先確認id是否可能存在, 確定不存在時直接回傳 (不上鎖, 不查資料庫, 不寫緩存)
+    //      所有節點共用同一個bitmap, 新增資料時由寫入的節點更新
+    // 失效與重建:
+    //      bitmap不存在時(尚未建立或被淘汰)一律視為可能存在, 並在背景從資料庫重建 (建立在暫存key後RENAME, 不會讀到建到一半的資料)
+    //      每次重建使用各自的暫存key (bloom:{name}:building:{token}), buildingKey只記錄目前的暫存key
+    //      鎖逾時被其他節點接手時, 舊的重建不會刪到新的暫存key; 換上時以Lua確認仍持有鎖, 沒有鎖就丟棄自己的暫存key
+    //      重建期間每寫完一批就延長鎖, 失去鎖時提早結束
+    //      布隆過濾器無法刪除元素, 刪除的資料只記錄次數, 累積超過REBUILD_RATIO後重建, 避免誤判率持續上升
+
+    private static final double REBUILD_RATIO = 0.1;
+    private static final int BATCH_SIZE = 10000;
+    private static final long BUILD_TTL = 3600L; // 暫存key的存活時間(秒), 重建中斷時自動清除
+    // 同時寫入重建中的暫存key (由KEYS[2]取得), 重建期間新增的id不會在RENAME後遺失
+    private static final DefaultRedisScript<Long> ADD_SCRIPT = new DefaultRedisScript<>(
+            "for i = 1, #ARGV do redis.call('setbit', KEYS[1], ARGV[i], 1) end " +
+                    "local building = redis.call('get', KEYS[2]) " +
+                    "if building and redis.call('exists', building) == 1 then " +
+                    "for i = 1, #ARGV do redis.call('setbit', building, ARGV[i], 1) end " +
+                    "end " +
+                    "return 1",
+            Long.class
+    );
+    // 確認仍持有鎖後才以暫存key取代正式的bitmap, 否則刪除自己的暫存key (成功回傳1)
+    // KEYS: 鎖, 暫存key, 正式key, 刪除次數, 目前的暫存key; ARGV: token
+    private static final DefaultRedisScript<Long> SWAP_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('get', KEYS[1]) ~= ARGV[1] then " +
+                    "redis.call('del', KEYS[2]) " +
+                    "return 0 " +
+                    "end " +
+                    "redis.call('rename', KEYS[2], KEYS[3]) " +
+                    "redis.call('persist', KEYS[3]) " +
+                    "redis.call('del', KEYS[4]) " +
+                    "if redis.call('get', KEYS[5]) == KEYS[2] then redis.call('del', KEYS[5]) end " +
+                    "return 1",
+            Long.class
+    );
+
+    private final String key;
+    private final String lockKey;
+    private final String removedKey;
+    private final String buildingKey;
+    private final long bits;
+    private final int hashes;
+    private final long rebuildThreshold;
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final RedisLock redisLock;
+    private final CacheRebuildScheduler rebuildScheduler;
+    private volatile Supplier<Collection<?>> source;
+
+    /**
+     * @param name               過濾器名稱 (Redis的key為 bloom:{name})
+     * @param expectedInsertions 預計的元素數量
+     * @param fpp                預期的誤判率 (例如0.01)
+     */
+    public RedisBloomFilter(String name, long expectedInsertions, double fpp, StringRedisTemplate stringRedisTemplate, TransactionTemplate transactionTemplate, RedisLock redisLock, CacheRebuildScheduler rebuildScheduler) {
+        this.key = "bloom:" + name;
+        this.lockKey = "lock:bloom:" + name;
+        this.removedKey = key + ":removed";
+        this.buildingKey = key + ":building";
+        // 最佳的bit數與hash次數 (m = -n * ln(p) / ln(2)^2, k = m / n * ln(2))
+        this.bits = Math.max(64L, (long) Math.ceil(-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2))));
+        this.hashes = Math.max(1, (int) Math.round((double) bits / expectedInsertions * Math.log(2)));
+        this.rebuildThreshold = Math.max(1L, (long) (expectedInsertions * REBUILD_RATIO));
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.transactionTemplate = transactionTemplate;
+        this.redisLock = redisLock;
+        this.rebuildScheduler = rebuildScheduler;
+    }
+
+    /**
+     * 設定重建時的資料來源, bitmap不存在時在背景重建
+     *
+     * @param source 取得所有id的函式 (在新的事務中執行)
+     */
+    public void initialize(Supplier<Collection<?>> source) {
+        this.source = source;
+        if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(key))) {
+            scheduleRebuild();
+        }
+    }
+
+    /**
+     * id是否可能存在
+     *
+     * @return false表示一定不存在, true表示可能存在 (過濾器尚未建立時一律回傳true)
+     */
+    public boolean mightContain(Object id) {
+        List<Object> results = getBits(List.of(id));
+        if (!Boolean.TRUE.equals(results.get(0))) {
+            scheduleRebuild();
+            return true;
+        }
+        return allSet(results, 1);
+    }
+
+    /**
+     * 批次過濾, 只保留可能存在的id (一次pipeline)
+     *
+     * @return 可能存在的id (維持原本的順序)
+     */
+    public <ID> List<ID> filter(Collection<ID> ids) {
+        List<ID> result = new ArrayList<>(ids.size());
+        if (ids.isEmpty()) {
+            return result;
+        }
+
+        List<Object> results = getBits(ids);
+        if (!Boolean.TRUE.equals(results.get(0))) {
+            scheduleRebuild();
+            result.addAll(ids);
+            return result;
+        }
+        int offset = 1;
+        for (ID id : ids) {
+            if (allSet(results, offset)) {
+                result.add(id);
+            }
+            offset += hashes;
+        }
+        return result;
+    }
+
+    /**
+     * 加入id (新增資料時呼叫)
+     */
+    public void add(Object id) {
+        long[] offsets = offsets(id);
+        String[] args = new String[offsets.length];
+        for (int i = 0; i < offsets.length; i++) {
+            args[i] = String.valueOf(offsets[i]);
+        }
+        stringRedisTemplate.execute(ADD_SCRIPT, Arrays.asList(key, buildingKey), (Object[]) args);
+    }
+
+    /**
+     * 記錄被刪除的id, 累積一定數量後重建過濾器
+     */
+    public void remove(Object id) {
+        Long removed = stringRedisTemplate.opsForValue().increment(removedKey);
+        if (removed != null && removed >= rebuildThreshold) {
+            log.info("Bloom filter {} has {} removed ids, rebuilding", key, removed);
+            scheduleRebuild();
+        }
+    }
+
+    private void scheduleRebuild() {
+        if (source == null || rebuildScheduler.isPending(key)) {
+            return;
+        }
+        rebuildScheduler.submit(key, CacheRebuildScheduler.PRIORITY_NORMAL, this::rebuild);
+    }
+
+    private void rebuild() {
+        String token = redisLock.tryLock(lockKey);
+        if (token == null) {
+            // 其他節點正在重建
+            return;
+        }
+        String tempKey = buildingKey + ":" + token;
+        try {
+            // 先建立完整長度的暫存bitmap再讀取資料庫, 之後新增的id會由add同時寫入
+            // 資料庫沒有資料時也會產生key (不會一直被判定為尚未建立)
+            stringRedisTemplate.opsForValue().setBit(tempKey, bits - 1, false);
+            stringRedisTemplate.expire(tempKey, BUILD_TTL, TimeUnit.SECONDS);
+            stringRedisTemplate.opsForValue().set(buildingKey, tempKey, BUILD_TTL, TimeUnit.SECONDS);
+            Collection<?> ids = transactionTemplate.execute(status -> source.get());
+
+            List<Object> batch = new ArrayList<>(BATCH_SIZE);
+            if (ids != null) {
+                for (Object id : ids) {
+                    batch.add(id);
+                    if (batch.size() == BATCH_SIZE) {
+                        if (!setBits(tempKey, batch, token)) {
+                            return;
+                        }
+                        batch.clear();
+                    }
+                }
+            }
+            if (!setBits(tempKey, batch, token)) {
+                return;
+            }
+
+            Long swapped = stringRedisTemplate.execute(SWAP_SCRIPT, Arrays.asList(lockKey, tempKey, key, removedKey, buildingKey), token);
+            if (swapped == null || swapped != 1L) {
+                log.warn("Bloom filter {} rebuild lost its lock, discarded", key);
+                return;
+            }
+            log.info("Bloom filter {} rebuilt with {} ids ({} bits, {} hashes)", key, ids == null ? 0 : ids.size(), bits, hashes);
+        } finally {
+            redisLock.unlock(lockKey, token);
+        }
+    }
+
+    /**
+     * 一次pipeline讀取: 第一個結果是key是否存在, 之後每個id各hashes個bit
+     */
+    private List<Object> getBits(Collection<?> ids) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        return stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.keyCommands().exists(rawKey);
+            for (Object id : ids) {
+                for (long offset : offsets(id)) {
+                    connection.stringCommands().getBit(rawKey, offset);
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 寫入一批id並延長重建的鎖
+     *
+     * @return 是否仍持有鎖 (失去鎖時刪除暫存key, 呼叫端停止重建)
+     */
+    private boolean setBits(String targetKey, Collection<?> ids, String token) {
+        if (!ids.isEmpty()) {
+            byte[] rawKey = targetKey.getBytes(StandardCharsets.UTF_8);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (Object id : ids) {
+                    for (long offset : offsets(id)) {
+                        connection.stringCommands().setBit(rawKey, offset, true);
+                    }
+                }
+                return null;
+            });
+        }
+        if (!redisLock.renew(lockKey, token)) {
+            log.warn("Bloom filter {} rebuild lost its lock, discarded", key);
+            stringRedisTemplate.delete(targetKey);
+            return false;
+        }
+        return true;
+    }
+
+    private boolean allSet(List<Object> results, int from) {
+        for (int i = from; i < from + hashes; i++) {
+            if (!Boolean.TRUE.equals(results.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 以兩個64位元hash模擬k個hash函式 (h1 + i * h2)
+     */
+    private long[] offsets(Object id) {
+        byte[] bytes = String.valueOf(id).getBytes(StandardCharsets.UTF_8);
+        // FNV-1a
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : bytes) {
+            hash ^= b;
+            hash *= 0x100000001b3L;
+        }
+        long h1 = mix(hash);
+        long h2 = mix(h1 ^ 0x9e3779b97f4a7c15L);
+
+        long[] offsets = new long[hashes];
+        for (int i = 0; i < hashes; i++) {
+            offsets[i] = Math.floorMod(h1 + i * h2, bits);
+        }
+        return offsets;
+    }
+
+    // MurmurHash3的fmix64, 讓hash的每個bit充分混合
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -1,11 +0,0 @@
-package com.tibame.utils.redis;
-
-import lombok.Data;
-
-import java.time.LocalDateTime;
-
-@Data
-public class RedisData {
-    private LocalDateTime expireTime;
-    private Object data;
-}
@@ -0,0 +1,162 @@
+package com.tibame.utils.redis;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+@Slf4j
+@Component
+public class RedisLock implements MessageListener {
+    // 分散式互斥鎖:
+    //      上鎖: SET key token NX EX, token由節點id與流水號組成, 解鎖時只能刪除自己的鎖
+    //      解鎖: 使用Lua腳本比對token後刪除 (原本直接delete, 鎖逾時後可能會刪掉別人剛拿到的鎖)
+    //            並在同一個腳本內發布解鎖通知
+    // 等待鎖:
+    //      原本固定每50ms重試一次, 浪費Redis操作也讓延遲變成50ms的倍數
+    //      改成等待解鎖通知喚醒, 沒收到通知時(例如持有者逾時沒解鎖)以指數退避的間隔重試
+
+    public static final String RELEASE_CHANNEL = "lock:release";
+    public static final long LOCK_TTL = 10L; // 秒
+    private static final long MIN_BACKOFF = 10L; // 毫秒
+    private static final long MAX_BACKOFF = 200L; // 毫秒
+
+    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('get', KEYS[1]) == ARGV[1] then " +
+                    "redis.call('del', KEYS[1]) " +
+                    "redis.call('publish', ARGV[2], KEYS[1]) " +
+                    "return 1 " +
+                    "end " +
+                    "return 0",
+            Long.class
+    );
+
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('get', KEYS[1]) == ARGV[1] then " +
+                    "redis.call('expire', KEYS[1], ARGV[2]) " +
+                    "return 1 " +
+                    "end " +
+                    "return 0",
+            Long.class
+    );
+
+    private final String nodeId = UUID.randomUUID().toString();
+    private final AtomicLong sequence = new AtomicLong();
+    // 等待中的鎖 -> 解鎖訊號 (收到解鎖通知時喚醒所有等待同一把鎖的執行緒)
+    private final ConcurrentHashMap<String, CompletableFuture<Void>> releaseSignals = new ConcurrentHashMap<>();
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisMessageListenerContainer listenerContainer;
+
+    public RedisLock(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer listenerContainer) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+    }
+
+    @PostConstruct
+    public void subscribe() {
+        listenerContainer.addMessageListener(this, new ChannelTopic(RELEASE_CHANNEL));
+    }
+
+    /**
+     * 嘗試上鎖一次
+     *
+     * @param key 鎖的key
+     * @return 成功時回傳持有者token (解鎖時使用), 失敗回傳null
+     */
+    public String tryLock(String key) {
+        String token = nodeId + ":" + sequence.incrementAndGet();
+        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, token, LOCK_TTL, TimeUnit.SECONDS);
+        return Boolean.TRUE.equals(flag) ? token : null;
+    }
+
+    /**
+     * 在時間限制內等待並取得鎖
+     *
+     * @param key     鎖的key
+     * @param timeout 最長等待時間
+     * @param unit    時間單位
+     * @return 成功時回傳持有者token, 超時回傳null
+     */
+    public String lock(String key, long timeout, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        long backoff = MIN_BACKOFF;
+        while (true) {
+            // 先登記等待訊號再嘗試上鎖, 避免在兩者之間錯過解鎖通知
+            CompletableFuture<Void> signal = releaseSignals.computeIfAbsent(key, k -> new CompletableFuture<>());
+            String token = tryLock(key);
+            if (token != null) {
+                return token;
+            }
+
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                return null;
+            }
+
+            try {
+                signal.get(Math.min(backoff, remaining), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // 沒有收到解鎖通知, 拉長下次等待的間隔
+                backoff = Math.min(backoff * 2, MAX_BACKOFF);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * 解鎖 (只會刪除token相符的鎖)
+     *
+     * @param key   鎖的key
+     * @param token 上鎖時取得的token
+     * @return 是否成功解鎖 (false表示鎖已逾時或被其他人持有)
+     */
+    public boolean unlock(String key, String token) {
+        Long result = stringRedisTemplate.execute(UNLOCK_SCRIPT, Collections.singletonList(key), token, RELEASE_CHANNEL);
+        if (result == null || result == 0) {
+            log.warn("Lock {} was expired or held by another owner when unlocking", key);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 延長鎖的時間 (持有鎖執行較久的工作時定期呼叫, 只會延長token相符的鎖)
+     *
+     * @param key   鎖的key
+     * @param token 上鎖時取得的token
+     * @return 是否仍然持有鎖 (false表示鎖已逾時或被其他人持有)
+     */
+    public boolean renew(String key, String token) {
+        Long result = stringRedisTemplate.execute(RENEW_SCRIPT, Collections.singletonList(key), token, String.valueOf(LOCK_TTL));
+        return result != null && result == 1L;
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String key = new String(message.getBody(), StandardCharsets.UTF_8);
+        CompletableFuture<Void> signal = releaseSignals.remove(key);
+        if (signal != null) {
+            signal.complete(null);
+        }
+    }
+}
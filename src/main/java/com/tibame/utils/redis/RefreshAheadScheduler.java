@@ -0,0 +1,171 @@
+package com.tibame.utils.redis;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+@Slf4j
+@Component
+public class RefreshAheadScheduler {
+    // 熱門key的提前刷新:
+    //      邏輯過期只在讀取到過期資料時才會觸發重建, 過期後的第一批讀取一定拿到舊資料, 而且重建會集中在同一時間
+    //      記錄每個key的讀取頻率, 熱門的key在邏輯過期前就先交給CacheRebuildScheduler重建
+    // 讀取頻率:
+    //      每個SCAN_INTERVAL結算一次分數 (分數 = 上次分數 / 2 + 這段時間的讀取次數), 分數歸零的key停止追蹤
+    // 刷新時間:
+    //      過期前REFRESH_LEAD再往前隨機REFRESH_JITTER, 每個節點各自隨機, 避免所有節點同時搶鎖重建
+    // 注意:
+    //      刷新失敗或沒搶到鎖時不重試, 等待下一次讀取回報新的過期時間 (最差情況與原本的邏輯過期相同)
+
+    private static final long SCAN_INTERVAL = 1000L; // 毫秒
+    private static final int HOT_SCORE = 4; // 約每秒讀取2次以上
+    private static final long REFRESH_LEAD = 5000L; // 毫秒
+    private static final long REFRESH_JITTER = 5000L; // 毫秒
+    private static final int MAX_TRACKED = 10000;
+
+    private final ConcurrentHashMap<String, TrackedKey> tracked = new ConcurrentHashMap<>();
+    private final LongAdder refreshes = new LongAdder();
+    private final LongAdder refreshFailures = new LongAdder();
+    private final ScheduledExecutorService scanExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "cache-refresh-ahead");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    public void start() {
+        scanExecutor.scheduleWithFixedDelay(this::scan, SCAN_INTERVAL, SCAN_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scanExecutor.shutdownNow();
+    }
+
+    /**
+     * 記錄一次讀取
+     *
+     * @param key          緩存的key
+     * @param expireMillis 讀取到的資料的邏輯過期時間 (epoch millis)
+     * @return 這個key是否已經在追蹤中 (false時呼叫端需要呼叫track註冊刷新方式)
+     */
+    public boolean recordAccess(String key, long expireMillis) {
+        TrackedKey trackedKey = tracked.get(key);
+        if (trackedKey == null) {
+            return false;
+        }
+        trackedKey.hits.incrementAndGet();
+        if (expireMillis > trackedKey.expireMillis) {
+            // 資料已經被重建, 依照新的過期時間重新安排刷新
+            trackedKey.reschedule(expireMillis);
+        }
+        return true;
+    }
+
+    /**
+     * 開始追蹤一個key
+     *
+     * @param key          緩存的key
+     * @param expireMillis 資料的邏輯過期時間 (epoch millis)
+     * @param refresher    提前刷新的方式
+     */
+    public void track(String key, long expireMillis, Refresher refresher) {
+        if (tracked.size() >= MAX_TRACKED) {
+            return;
+        }
+        TrackedKey trackedKey = new TrackedKey(refresher);
+        trackedKey.hits.incrementAndGet();
+        trackedKey.reschedule(expireMillis);
+        tracked.putIfAbsent(key, trackedKey);
+    }
+
+    /**
+     * 取得提前刷新的統計數據
+     *
+     * @return 統計資料
+     */
+    public Map<String, Long> getStats() {
+        long hot = tracked.values().stream().filter(trackedKey -> trackedKey.score >= HOT_SCORE).count();
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("tracked", (long) tracked.size());
+        stats.put("hot", hot);
+        stats.put("refreshes", refreshes.sum());
+        stats.put("refreshFailures", refreshFailures.sum());
+        return stats;
+    }
+
+    private void scan() {
+        long now = System.currentTimeMillis();
+        tracked.forEach((key, trackedKey) -> {
+            trackedKey.score = trackedKey.score / 2 + trackedKey.hits.getAndSet(0);
+            if (trackedKey.score == 0) {
+                // 一段時間沒有人讀取, 停止追蹤
+                tracked.remove(key, trackedKey);
+                return;
+            }
+            if (trackedKey.score < HOT_SCORE || now < trackedKey.refreshAt) {
+                return;
+            }
+
+            long knownExpire = trackedKey.expireMillis;
+            try {
+                refreshes.increment();
+                long expireMillis = trackedKey.refresher.refresh(knownExpire);
+                if (expireMillis < 0) {
+                    // 緩存已經不存在 (被刪除或變成空值), 之後的讀取會重新建立
+                    tracked.remove(key, trackedKey);
+                } else if (expireMillis > knownExpire) {
+                    // 其他節點已經刷新過了
+                    trackedKey.reschedule(expireMillis);
+                } else {
+                    // 已安排重建 (或沒搶到鎖), 等待讀取回報新的過期時間
+                    trackedKey.refreshAt = Long.MAX_VALUE;
+                }
+            } catch (Exception e) {
+                refreshFailures.increment();
+                trackedKey.refreshAt = Long.MAX_VALUE;
+                log.warn("Failed to refresh cache {} ahead of expiry", key, e);
+            }
+        });
+    }
+
+    @FunctionalInterface
+    public interface Refresher {
+        /**
+         * 提前刷新緩存 (在掃描執行緒上執行, 實際的重建請交給CacheRebuildScheduler)
+         *
+         * @param knownExpireMillis 目前記錄的邏輯過期時間
+         * @return Redis中資料的邏輯過期時間, 資料不存在時回傳-1
+         */
+        long refresh(long knownExpireMillis);
+    }
+
+    private static class TrackedKey {
+        private final Refresher refresher;
+        private final AtomicInteger hits = new AtomicInteger();
+        private volatile long expireMillis;
+        private volatile long refreshAt;
+        // 只在掃描執行緒中修改
+        private volatile int score;
+
+        private TrackedKey(Refresher refresher) {
+            this.refresher = refresher;
+        }
+
+        private void reschedule(long expireMillis) {
+            this.expireMillis = expireMillis;
+            this.refreshAt = expireMillis - REFRESH_LEAD - ThreadLocalRandom.current().nextLong(REFRESH_JITTER);
+        }
+    }
+}
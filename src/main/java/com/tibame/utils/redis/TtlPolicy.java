@@ -0,0 +1,114 @@
+package com.tibame.utils.redis;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// 緩存的過期時間策略 (防止緩存雪崩)
+// 問題:
+//      部署後的暖機期間大量資料在同一時間寫入, 使用固定的過期時間會讓它們在同一時間過期, 同時回頭查詢資料庫
+// 做法:
+//      每次寫入時在基準時間上加入隨機的偏移, 讓過期時間分散開來, 並限制在min/max之間
+//      UNIFORM:  在 base * (1 ± spread) 之間平均分布
+//      GAUSSIAN: 以base為中心的常態分布 (標準差為 base * spread / 2), 超出 base * (1 ± spread) 的部分截斷
+// 使用方式:
+//      TtlPolicy.of(60, TimeUnit.SECONDS).withJitter(TtlPolicy.Distribution.UNIFORM, 0.2)
+//      物件本身不可變, withXXX會回傳新的物件, 可以安全地宣告成常數共用
+public final class TtlPolicy {
+    public enum Distribution {
+        NONE,
+        UNIFORM,
+        GAUSSIAN
+    }
+
+    private final long baseMillis;
+    private final Distribution distribution;
+    private final double spread;
+    private final long minMillis;
+    private final long maxMillis;
+
+    private TtlPolicy(long baseMillis, Distribution distribution, double spread, long minMillis, long maxMillis) {
+        this.baseMillis = baseMillis;
+        this.distribution = distribution;
+        this.spread = spread;
+        this.minMillis = minMillis;
+        this.maxMillis = maxMillis;
+    }
+
+    /**
+     * 建立固定的過期時間 (不加入隨機偏移)
+     *
+     * @param base 基準過期時間
+     * @param unit 時間單位
+     */
+    public static TtlPolicy of(long base, TimeUnit unit) {
+        if (base < 0) {
+            throw new IllegalArgumentException("TTL must not be negative: " + base);
+        }
+        return new TtlPolicy(unit.toMillis(base), Distribution.NONE, 0, 0L, Long.MAX_VALUE);
+    }
+
+    /**
+     * 加入隨機偏移
+     *
+     * @param distribution 偏移的分布方式
+     * @param spread       最大偏移比例 (0 ~ 1, 例如0.2表示 ±20%)
+     */
+    public TtlPolicy withJitter(Distribution distribution, double spread) {
+        if (spread < 0 || spread >= 1) {
+            throw new IllegalArgumentException("Jitter spread must be in [0, 1): " + spread);
+        }
+        return new TtlPolicy(baseMillis, distribution, spread, minMillis, maxMillis);
+    }
+
+    /**
+     * 限制過期時間的範圍
+     *
+     * @param min  最短過期時間
+     * @param max  最長過期時間
+     * @param unit 時間單位
+     */
+    public TtlPolicy withBounds(long min, long max, TimeUnit unit) {
+        if (min < 0 || min > max) {
+            throw new IllegalArgumentException("Invalid TTL bounds: [" + min + ", " + max + "]");
+        }
+        return new TtlPolicy(baseMillis, distribution, spread, unit.toMillis(min), unit.toMillis(max));
+    }
+
+    /**
+     * 取得這次寫入要使用的過期時間 (每次呼叫都會重新抽樣)
+     *
+     * @return 過期時間 (毫秒)
+     */
+    public long nextMillis() {
+        double offset;
+        switch (distribution) {
+            case UNIFORM:
+                offset = spread == 0 ? 0 : ThreadLocalRandom.current().nextDouble(-spread, spread);
+                break;
+            case GAUSSIAN:
+                offset = ThreadLocalRandom.current().nextGaussian() * spread / 2;
+                offset = Math.max(-spread, Math.min(spread, offset));
+                break;
+            case NONE:
+            default:
+                offset = 0;
+        }
+        long ttl = Math.round(baseMillis * (1 + offset));
+        return Math.max(minMillis, Math.min(maxMillis, ttl));
+    }
+
+    public long getBaseMillis() {
+        return baseMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "TtlPolicy{" +
+                "baseMillis=" + baseMillis +
+                ", distribution=" + distribution +
+                ", spread=" + spread +
+                ", minMillis=" + minMillis +
+                ", maxMillis=" + maxMillis +
+                '}';
+    }
+}